@@ -1,10 +1,13 @@
 package co.nyzo.verifier;
 
+import co.nyzo.verifier.util.PreferencesUtil;
 import co.nyzo.verifier.util.PrintUtil;
 
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BalanceList implements MessageObject {
 
@@ -32,12 +35,29 @@ public class BalanceList implements MessageObject {
     private long blockHeight;
     private byte rolloverFees;
     private List<byte[]> previousVerifiers;
-    private List<BalanceListItem> items;
+
+    // The items are held as a persistent map, as columns, or both. Lists produced by block processing start as maps,
+    // which share unchanged accounts with the previous list. Lists read from bytes start as columns, and the map is
+    // only built if the list is used to derive the next list. The columnar view of a map-backed list is built when
+    // first needed.
+    private volatile PersistentBalanceMap balanceMap;
+    private volatile BalanceListColumns columns;
+    private final int numberOfItems;
+
     private long unlockThreshold;
     private long unlockTransferSum;
     private Map<ByteBuffer, Transaction> pendingCycleTransactions;
     private List<ApprovedCycleTransaction> recentlyApprovedCycleTransactions;
 
+    // A balance list is not modified after construction, so its serialized form and hash are computed at most once.
+    private volatile byte[] bytes = null;
+    private volatile byte[] hash = null;
+    private static final LongAdder bytesCacheHitCount = new LongAdder();
+    private static final LongAdder hashCacheHitCount = new LongAdder();
+
+    private static final boolean incrementalHashing = PreferencesUtil.getBoolean("incremental_balance_list_hashing",
+            true);
+
     public BalanceList(int blockchainVersion, long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
                        List<BalanceListItem> items, long unlockThreshold, long unlockTransferSum,
                        Map<ByteBuffer, Transaction> pendingCycleTransactions,
@@ -47,7 +67,52 @@ public class BalanceList implements MessageObject {
         this.blockHeight = blockHeight;
         this.rolloverFees = rolloverFees;
         this.previousVerifiers = previousVerifiers;
-        this.items = normalize(items);
+        this.balanceMap = PersistentBalanceMap.fromSortedItems(normalize(items));
+        this.columns = null;
+        this.numberOfItems = this.balanceMap.size();
+        this.unlockThreshold = this.blockchainVersion == 0 ? 0 : unlockThreshold;      // implicitly 0 for version 0
+        this.unlockTransferSum = this.blockchainVersion == 0 ? 0 : unlockTransferSum;  // implicitly 0 for version 0
+        this.pendingCycleTransactions = this.blockchainVersion < 2 ? new ConcurrentHashMap<>() :
+                pendingCycleTransactions;
+        this.recentlyApprovedCycleTransactions = this.blockchainVersion < 2 ? new ArrayList<>() :
+                recentlyApprovedCycleTransactions;
+    }
+
+    public BalanceList(int blockchainVersion, long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
+                       PersistentBalanceMap balanceMap, long unlockThreshold, long unlockTransferSum,
+                       Map<ByteBuffer, Transaction> pendingCycleTransactions,
+                       List<ApprovedCycleTransaction> recentlyApprovedCycleTransactions) {
+
+        // The map is already sorted and free of duplicates. It must contain only positive balances, the same
+        // requirement that normalization enforces for a list of items.
+        this.blockchainVersion = Block.limitBlockchainVersion(blockchainVersion);
+        this.blockHeight = blockHeight;
+        this.rolloverFees = rolloverFees;
+        this.previousVerifiers = previousVerifiers;
+        this.balanceMap = balanceMap;
+        this.columns = null;
+        this.numberOfItems = balanceMap.size();
+        this.unlockThreshold = this.blockchainVersion == 0 ? 0 : unlockThreshold;      // implicitly 0 for version 0
+        this.unlockTransferSum = this.blockchainVersion == 0 ? 0 : unlockTransferSum;  // implicitly 0 for version 0
+        this.pendingCycleTransactions = this.blockchainVersion < 2 ? new ConcurrentHashMap<>() :
+                pendingCycleTransactions;
+        this.recentlyApprovedCycleTransactions = this.blockchainVersion < 2 ? new ArrayList<>() :
+                recentlyApprovedCycleTransactions;
+    }
+
+    private BalanceList(int blockchainVersion, long blockHeight, byte rolloverFees, List<byte[]> previousVerifiers,
+                        BalanceListColumns columns, long unlockThreshold, long unlockTransferSum,
+                        Map<ByteBuffer, Transaction> pendingCycleTransactions,
+                        List<ApprovedCycleTransaction> recentlyApprovedCycleTransactions) {
+
+        // The columns must be normalized. This is checked by fromByteBuffer().
+        this.blockchainVersion = Block.limitBlockchainVersion(blockchainVersion);
+        this.blockHeight = blockHeight;
+        this.rolloverFees = rolloverFees;
+        this.previousVerifiers = previousVerifiers;
+        this.balanceMap = null;
+        this.columns = columns;
+        this.numberOfItems = columns.size();
         this.unlockThreshold = this.blockchainVersion == 0 ? 0 : unlockThreshold;      // implicitly 0 for version 0
         this.unlockTransferSum = this.blockchainVersion == 0 ? 0 : unlockTransferSum;  // implicitly 0 for version 0
         this.pendingCycleTransactions = this.blockchainVersion < 2 ? new ConcurrentHashMap<>() :
@@ -97,7 +162,42 @@ public class BalanceList implements MessageObject {
     }
 
     public List<BalanceListItem> getItems() {
-        return items;
+        return getBalanceMap().asList();
+    }
+
+    public int getNumberOfItems() {
+        return numberOfItems;
+    }
+
+    public PersistentBalanceMap getBalanceMap() {
+
+        PersistentBalanceMap balanceMap = this.balanceMap;
+        if (balanceMap == null) {
+            balanceMap = PersistentBalanceMap.fromSortedItems(columns.toItems(blockHeight));
+            this.balanceMap = balanceMap;
+        }
+
+        return balanceMap;
+    }
+
+    public PersistentBalanceMap getBalanceMapIfPresent() {
+
+        // This returns the map only if the list already holds one, so callers that walk the items can use whichever
+        // form the list holds without building the other.
+        return balanceMap;
+    }
+
+    public BalanceListColumns getColumns() {
+
+        // This is the allocation-free view of the items: identifiers, balances, and blocks-until-fee counters, in
+        // identifier order, accessed by index.
+        BalanceListColumns columns = this.columns;
+        if (columns == null) {
+            columns = BalanceListColumns.fromMap(balanceMap, blockHeight);
+            this.columns = columns;
+        }
+
+        return columns;
     }
 
     public long getUnlockThreshold() {
@@ -131,15 +231,8 @@ public class BalanceList implements MessageObject {
             previousVerifiers.add(verifierIdentifier);
         }
 
-        long numberOfPairs = buffer.getInt();
-        List<BalanceListItem> items = new ArrayList<>();
-        for (int i = 0; i < numberOfPairs; i++) {
-            byte[] identifier = new byte[FieldByteSize.identifier];
-            buffer.get(identifier);
-            long balance = buffer.getLong();
-            short blocksUntilFee = buffer.getShort();
-            items.add(new BalanceListItem(identifier, balance, blocksUntilFee));
-        }
+        int numberOfPairs = buffer.getInt();
+        BalanceListColumns columns = BalanceListColumns.fromByteBuffer(buffer, numberOfPairs);
 
         long unlockThreshold = 0L;
         long unlockTransferSum = 0L;
@@ -165,8 +258,19 @@ public class BalanceList implements MessageObject {
             }
         }
 
-        return new BalanceList(blockchainVersion, blockHeight, rolloverFees, previousVerifiers, items, unlockThreshold,
-                unlockTransferSum, pendingCycleTransactions, recentlyApprovedCycleTransactions);
+        // A list that is already sorted, free of duplicates, and free of non-positive balances is kept in columns. Any
+        // other list is normalized as items, exactly as it would have been before columnar storage.
+        BalanceList balanceList;
+        if (columns.isNormalized()) {
+            balanceList = new BalanceList(blockchainVersion, blockHeight, rolloverFees, previousVerifiers, columns,
+                    unlockThreshold, unlockTransferSum, pendingCycleTransactions, recentlyApprovedCycleTransactions);
+        } else {
+            balanceList = new BalanceList(blockchainVersion, blockHeight, rolloverFees, previousVerifiers,
+                    columns.toItems(blockHeight), unlockThreshold, unlockTransferSum, pendingCycleTransactions,
+                    recentlyApprovedCycleTransactions);
+        }
+
+        return balanceList;
     }
 
     @Override
@@ -178,7 +282,7 @@ public class BalanceList implements MessageObject {
                 FieldByteSize.rolloverTransactionFees +
                 FieldByteSize.identifier * numberOfPreviousVerifiers +
                 FieldByteSize.balanceListLength +
-                bytesPerItem * items.size() +
+                bytesPerItem * numberOfItems +
                 (blockchainVersion > 0 ? FieldByteSize.transactionAmount * 2 : 0);
 
         // For blockchain version 2 and above, add the pending cycle transactions and approved cycle transactions.
@@ -200,6 +304,19 @@ public class BalanceList implements MessageObject {
     @Override
     public byte[] getBytes() {
 
+        byte[] bytes = this.bytes;
+        if (bytes == null) {
+            bytes = serialize();
+            this.bytes = bytes;
+        } else {
+            bytesCacheHitCount.increment();
+        }
+
+        return bytes;
+    }
+
+    private byte[] serialize() {
+
         byte[] result = new byte[getByteSize()];
         ByteBuffer buffer = ByteBuffer.wrap(result);
         buffer.putLong(ShortLong.combinedValue(blockchainVersion, blockHeight));
@@ -207,12 +324,38 @@ public class BalanceList implements MessageObject {
         for (byte[] previousVerifier : previousVerifiers) {
             buffer.put(previousVerifier);
         }
-        buffer.putInt(items.size());
-        for (BalanceListItem item : items) {
-            buffer.put(item.getIdentifier());
-            buffer.putLong(item.getBalance());
-            buffer.putShort(item.getBlocksUntilFee());
+        buffer.putInt(numberOfItems);
+        PersistentBalanceMap balanceMap = this.balanceMap;
+        if (balanceMap == null) {
+            columns.writeItems(buffer);
+        } else {
+            for (BalanceListItem item : balanceMap) {
+                buffer.put(item.getIdentifierAndBalanceBytes());
+                buffer.putShort(item.getBlocksUntilFee(blockHeight));
+            }
+        }
+        buffer.put(trailingBytes());
+
+        return result;
+    }
+
+    private byte[] trailingBytes() {
+
+        // These are the fields that follow the items. They are small, so they are serialized to their own array for use
+        // in both full serialization and streaming hashing.
+        int size = blockchainVersion > 0 ? FieldByteSize.transactionAmount * 2 : 0;
+        if (blockchainVersion > 1) {
+            size += FieldByteSize.unnamedInteger * 2;
+            for (Transaction transaction : pendingCycleTransactions.values()) {
+                size += transaction.getByteSize();
+            }
+            for (ApprovedCycleTransaction transaction : recentlyApprovedCycleTransactions) {
+                size += transaction.getByteSize();
+            }
         }
+
+        byte[] result = new byte[size];
+        ByteBuffer buffer = ByteBuffer.wrap(result);
         if (blockchainVersion > 0) {
             buffer.putLong(unlockThreshold);
             buffer.putLong(unlockTransferSum);
@@ -239,37 +382,92 @@ public class BalanceList implements MessageObject {
 
     public byte[] getHash() {
 
-        return HashUtil.doubleSHA256(getBytes());
+        byte[] hash = this.hash;
+        if (hash == null) {
+            byte[] bytes = this.bytes;
+            if (bytes != null || !incrementalHashing) {
+                hash = HashUtil.doubleSHA256(getBytes());
+            } else {
+                hash = calculateHashIncrementally();
+            }
+            this.hash = hash;
+        } else {
+            hashCacheHitCount.increment();
+        }
+
+        return hash;
+    }
+
+    private byte[] calculateHashIncrementally() {
+
+        // This produces the same hash as the double-SHA-256 of getBytes(), but it feeds the fields directly to the
+        // digest instead of assembling the full serialized list. The serialized identifier and balance of each item are
+        // reused from previous balance lists when the balance has not changed, so only the accounts changed by a block
+        // are encoded again. A list held only in columns is hashed directly from the columns.
+        byte[] scratch = new byte[FieldByteSize.blockHeight + FieldByteSize.rolloverTransactionFees];
+        ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+        scratchBuffer.putLong(ShortLong.combinedValue(blockchainVersion, blockHeight));
+        scratchBuffer.put(rolloverFees);
+
+        MessageDigest digest = HashUtil.startSHA256();
+        digest.update(scratch);
+        for (byte[] previousVerifier : previousVerifiers) {
+            digest.update(previousVerifier);
+        }
+
+        scratchBuffer.clear();
+        scratchBuffer.putInt(numberOfItems);
+        digest.update(scratch, 0, FieldByteSize.balanceListLength);
+        PersistentBalanceMap balanceMap = this.balanceMap;
+        if (balanceMap == null) {
+            columns.updateDigest(digest);
+        } else {
+            for (BalanceListItem item : balanceMap) {
+                digest.update(item.getIdentifierAndBalanceBytes());
+                short blocksUntilFee = item.getBlocksUntilFee(blockHeight);
+                digest.update((byte) (blocksUntilFee >> 8));
+                digest.update((byte) blocksUntilFee);
+            }
+        }
+        digest.update(trailingBytes());
+
+        return HashUtil.finishDoubleSHA256(digest);
+    }
+
+    public static long getBytesCacheHitCount() {
+        return bytesCacheHitCount.sum();
+    }
+
+    public static long getHashCacheHitCount() {
+        return hashCacheHitCount.sum();
     }
 
     public long balanceForIdentifier(byte[] identifier) {
 
-        // This method performs a binary search on the identifier to efficiently find the balance.
+        // This is the lookup used by all balance queries. It is O(log n) and does not allocate: a search of the tree
+        // for a map-backed list, or a binary search of the identifier column for a list held in columns. Identifiers
+        // of the wrong length, including the empty arrays produced for unparseable input, match no account.
         long balance = 0L;
-        int lowIndex = 0;
-        int highIndex = items.size() - 1;
-        BalanceListItem identifierItem = new BalanceListItem(identifier, 0L);
-        while (lowIndex < highIndex && balance == 0L) {
-            int midIndex = (lowIndex + highIndex) / 2;
-            if (ByteUtil.arraysAreEqual(identifier, items.get(lowIndex).getIdentifier())) {
-                balance = items.get(lowIndex).getBalance();
-            } else if (ByteUtil.arraysAreEqual(identifier, items.get(highIndex).getIdentifier())) {
-                balance = items.get(highIndex).getBalance();
+        if (identifier != null && identifier.length == FieldByteSize.identifier) {
+            PersistentBalanceMap balanceMap = this.balanceMap;
+            if (balanceMap == null) {
+                int index = columns.indexOf(identifier);
+                balance = index < 0 ? 0L : columns.getBalance(index);
             } else {
-                int midComparison = balanceListItemComparator.compare(identifierItem, items.get(midIndex));
-                if (midComparison > 0) {
-                    lowIndex = midIndex + 1;
-                } else if (midComparison < 0) {
-                    highIndex = midIndex - 1;
-                } else {
-                    balance = items.get(midIndex).getBalance();
-                }
+                BalanceListItem item = balanceMap.get(identifier);
+                balance = item == null ? 0L : item.getBalance();
             }
         }
 
         return balance;
     }
 
+    public boolean containsIdentifier(byte[] identifier) {
+
+        // All accounts in a balance list have positive balances.
+        return balanceForIdentifier(identifier) > 0L;
+    }
+
     @Override
     public String toString() {
         return "[BalanceList: height=" + getBlockHeight() + ", hash=" +
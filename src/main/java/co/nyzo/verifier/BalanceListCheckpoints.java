@@ -0,0 +1,245 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BalanceListCheckpoints {
+
+    // A checkpoint is the serialized balance list for a frozen block at a multiple of the checkpoint interval, in a
+    // file of its own. The file is exactly the form read by BalanceList.fromByteBuffer(), so it is read by mapping the
+    // file into memory. The balance list for any height at or above the first checkpoint can then be rebuilt by
+    // loading the nearest checkpoint at or below the height and replaying, at most, one interval of blocks. Both the
+    // checkpoint and the result are checked against the balance-list hashes of their blocks.
+    //
+    // Checkpoints are enabled with the balance_list_checkpoints preference. They are written by a single writer
+    // thread, so freezing a block does not wait for the write. If the writer falls behind by more than a few
+    // checkpoints, further checkpoints are dropped and counted rather than held in memory.
+    //
+    // Old checkpoints are deleted after each write. The most recent checkpoints, by the number in the
+    // balance_list_checkpoint_recent_count preference, are always kept. Older than that, only every Nth checkpoint is
+    // kept, where N is the balance_list_checkpoint_sparse_interval preference; a value of 0 keeps no older
+    // checkpoints. A balance list is rebuilt from the nearest checkpoint that remains at or below its height.
+
+    public static final File checkpointDirectory = new File(BlockManager.blockRootDirectory, "checkpoints");
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("balance_list_checkpoints", false);
+    private static final long checkpointInterval = Math.max(1L,
+            PreferencesUtil.getLong("balance_list_checkpoint_interval", BlockManager.blocksPerFile));
+    private static final long recentCheckpointCount = Math.max(1L,
+            PreferencesUtil.getLong("balance_list_checkpoint_recent_count", 10L));
+    private static final long sparseCheckpointInterval = Math.max(0L,
+            PreferencesUtil.getLong("balance_list_checkpoint_sparse_interval", 10L));
+    private static final int writeQueueCapacity = 4;
+
+    private static final AtomicLong highestCheckpointHeight = new AtomicLong(-1L);
+    private static final BlockingQueue<BalanceList> writeQueue = new LinkedBlockingQueue<>(writeQueueCapacity);
+    private static final AtomicBoolean threadStarted = new AtomicBoolean(false);
+    private static final AtomicLong droppedCount = new AtomicLong(0L);
+    private static final AtomicLong deletedCount = new AtomicLong(0L);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static long getHighestCheckpointHeight() {
+        return highestCheckpointHeight.get();
+    }
+
+    public static boolean isCheckpointHeight(long height) {
+        return height % checkpointInterval == 0;
+    }
+
+    public static File fileForHeight(long height) {
+        return new File(checkpointDirectory, String.format("c_%09d.nyzobalancelist", height));
+    }
+
+    public static void frozenBlockWritten(Block block, BalanceList balanceList) {
+
+        if (enabled && balanceList != null && isCheckpointHeight(block.getBlockHeight())) {
+            startThread();
+            if (!writeQueue.offer(balanceList)) {
+                droppedCount.incrementAndGet();
+                LogUtil.println("BalanceListCheckpoints: writer is behind; dropped checkpoint " +
+                        block.getBlockHeight());
+            }
+        }
+    }
+
+    private static void startThread() {
+
+        if (!threadStarted.getAndSet(true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    // Queued checkpoints are written before the thread ends.
+                    while (!UpdateUtil.shouldTerminate() || !writeQueue.isEmpty()) {
+                        try {
+                            BalanceList balanceList = writeQueue.poll(1L, TimeUnit.SECONDS);
+                            if (balanceList != null) {
+                                writeCheckpoint(balanceList);
+                            }
+                        } catch (Exception e) {
+                            LogUtil.println("BalanceListCheckpoints: exception writing checkpoint: " +
+                                    PrintUtil.printException(e));
+                        }
+                    }
+                }
+            }, "BalanceListCheckpoints").start();
+        }
+    }
+
+    public static void writeCheckpoint(BalanceList balanceList) {
+
+        // The file is written to a temporary location and moved into place, so a checkpoint file is always complete.
+        // A checkpoint that would be deleted immediately under the retention policy, such as an old checkpoint
+        // reached during a replay, is not written.
+        long height = balanceList.getBlockHeight();
+        File file = fileForHeight(height);
+        if (!file.exists() && isRetained(height, Math.max(height, highestCheckpointHeight.get()))) {
+            checkpointDirectory.mkdirs();
+            FileUtil.writeFile(Paths.get(file.getAbsolutePath()), balanceList.getBytes());
+            FileUtil.sync(file);
+        }
+
+        if (file.exists()) {
+            recordCheckpointHeight(height);
+        }
+
+        deleteExpiredCheckpoints();
+    }
+
+    private static boolean isRetained(long height, long highestHeight) {
+
+        long intervalsBelowHighest = (highestHeight - height) / checkpointInterval;
+        return intervalsBelowHighest < recentCheckpointCount ||
+                (sparseCheckpointInterval > 0L && (height / checkpointInterval) % sparseCheckpointInterval == 0L);
+    }
+
+    private static synchronized void deleteExpiredCheckpoints() {
+
+        long highestHeight = highestCheckpointHeight.get();
+        File[] files = checkpointDirectory.listFiles();
+        if (files != null && highestHeight >= 0L) {
+            for (File file : files) {
+                long height = heightForFile(file);
+                if (height >= 0L && !isRetained(height, highestHeight) && file.delete()) {
+                    deletedCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static long heightForFile(File file) {
+
+        long height = -1L;
+        String name = file.getName();
+        if (name.startsWith("c_") && name.endsWith(".nyzobalancelist")) {
+            try {
+                height = Long.parseLong(name.substring(2, name.length() - ".nyzobalancelist".length()));
+            } catch (Exception ignored) { }
+        }
+
+        return height;
+    }
+
+    private static long checkpointHeightAtOrBelow(long height) {
+
+        long checkpointHeight = -1L;
+        File[] files = checkpointDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long fileHeight = heightForFile(file);
+                if (fileHeight <= height && fileHeight > checkpointHeight) {
+                    checkpointHeight = fileHeight;
+                }
+            }
+        }
+
+        return checkpointHeight;
+    }
+
+    public static void recordCheckpointHeight(long height) {
+
+        // The highest checkpoint height is restored from the chain manifest on startup and advanced as checkpoints
+        // are written.
+        long highestHeight = highestCheckpointHeight.get();
+        while (height > highestHeight && !highestCheckpointHeight.compareAndSet(highestHeight, height)) {
+            highestHeight = highestCheckpointHeight.get();
+        }
+    }
+
+    public static String checkpointInformation() {
+        return highestCheckpointHeight.get() + "/" + writeQueue.size() + "/" + deletedCount.get() + "/" +
+                droppedCount.get();
+    }
+
+    private static BalanceList loadCheckpoint(long height) {
+
+        BalanceList balanceList = null;
+        File file = fileForHeight(height);
+        if (file.exists()) {
+            try {
+                FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                try {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+                    balanceList = BalanceList.fromByteBuffer(buffer);
+                } finally {
+                    channel.close();
+                }
+            } catch (Exception e) {
+                LogUtil.println("unable to load balance-list checkpoint " + height + ": " +
+                        PrintUtil.printException(e));
+            }
+        }
+
+        return balanceList;
+    }
+
+    public static BalanceList balanceListForHeight(long height) {
+
+        // Blocks are read through the historical block service, so rebuilding a list does not add blocks to the
+        // block map or write block files. If the checkpoint in this height's interval has been deleted, the list is
+        // rebuilt from an older checkpoint with a longer replay.
+        BalanceList balanceList = null;
+        long checkpointHeight = checkpointHeightAtOrBelow(height);
+        Block block = checkpointHeight < 0L ? null : HistoricalBlockService.blockForHeight(checkpointHeight);
+        if (block != null) {
+            balanceList = loadCheckpoint(checkpointHeight);
+        }
+
+        if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+            System.err.println("incorrect hash for balance-list checkpoint at height " + checkpointHeight);
+            balanceList = null;
+        }
+
+        for (long replayHeight = checkpointHeight + 1L; replayHeight <= height && balanceList != null;
+             replayHeight++) {
+            Block nextBlock = HistoricalBlockService.blockForHeight(replayHeight);
+            balanceList = nextBlock == null ? null : Block.balanceListForNextBlock(block, balanceList,
+                    nextBlock.getTransactions(), nextBlock.getVerifierIdentifier(), nextBlock.getBlockchainVersion());
+            block = nextBlock;
+        }
+
+        if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(), block.getBalanceListHash())) {
+            System.err.println("incorrect hash for balance list rebuilt from checkpoint at height " + height);
+            balanceList = null;
+        }
+
+        return balanceList;
+    }
+}
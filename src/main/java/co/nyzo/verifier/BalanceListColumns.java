@@ -0,0 +1,199 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BalanceListColumns {
+
+    // This is a read-only, columnar copy of the items of a balance list at one height: the identifiers are packed
+    // end-to-end in one buffer, the balances in a second, and the blocks-until-fee counters in a third. The buffers are
+    // allocated outside the Java heap, so a large list costs the garbage collector three objects instead of several
+    // per account. Items are accessed by index through absolute reads, which do not allocate and are safe for
+    // concurrent readers.
+
+    private static final int identifierSize = FieldByteSize.identifier;
+    private static final int balanceSize = FieldByteSize.transactionAmount;
+    private static final int blocksUntilFeeSize = FieldByteSize.blocksUntilFee;
+    private static final int itemSize = identifierSize + balanceSize + blocksUntilFeeSize;
+
+    private static final LongAdder numberCreated = new LongAdder();
+    private static final AtomicLong bytesAllocated = new AtomicLong(0L);
+
+    private final int size;
+    private final ByteBuffer identifiers;
+    private final ByteBuffer balances;
+    private final ByteBuffer blocksUntilFee;
+
+    private BalanceListColumns(int size) {
+
+        this.size = size;
+        this.identifiers = ByteBuffer.allocateDirect(size * identifierSize);
+        this.balances = ByteBuffer.allocateDirect(size * balanceSize);
+        this.blocksUntilFee = ByteBuffer.allocateDirect(size * blocksUntilFeeSize);
+
+        numberCreated.increment();
+        bytesAllocated.addAndGet((long) size * itemSize);
+    }
+
+    public static BalanceListColumns fromByteBuffer(ByteBuffer buffer, int numberOfItems) {
+
+        // The serialized list stores each item as identifier, balance, and counter. These are split into the columns.
+        BalanceListColumns columns = new BalanceListColumns(numberOfItems);
+        byte[] identifier = new byte[identifierSize];
+        for (int i = 0; i < numberOfItems; i++) {
+            buffer.get(identifier);
+            columns.identifiers.put(identifier);
+            columns.balances.putLong(buffer.getLong());
+            columns.blocksUntilFee.putShort(buffer.getShort());
+        }
+        columns.identifiers.clear();
+        columns.balances.clear();
+        columns.blocksUntilFee.clear();
+
+        return columns;
+    }
+
+    public static BalanceListColumns fromMap(PersistentBalanceMap map, long listHeight) {
+
+        BalanceListColumns columns = new BalanceListColumns(map.size());
+        for (BalanceListItem item : map) {
+            columns.identifiers.put(item.getIdentifier());
+            columns.balances.putLong(item.getBalance());
+            columns.blocksUntilFee.putShort(item.getBlocksUntilFee(listHeight));
+        }
+        columns.identifiers.clear();
+        columns.balances.clear();
+        columns.blocksUntilFee.clear();
+
+        return columns;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getBalance(int index) {
+        return balances.getLong(index * balanceSize);
+    }
+
+    public short getBlocksUntilFee(int index) {
+        return blocksUntilFee.getShort(index * blocksUntilFeeSize);
+    }
+
+    public void getIdentifier(int index, byte[] destination) {
+
+        int offset = index * identifierSize;
+        for (int i = 0; i < identifierSize; i++) {
+            destination[i] = identifiers.get(offset + i);
+        }
+    }
+
+    public byte[] getIdentifier(int index) {
+
+        byte[] identifier = new byte[identifierSize];
+        getIdentifier(index, identifier);
+        return identifier;
+    }
+
+    public int compareIdentifier(int index, byte[] identifier) {
+
+        // This uses the unsigned ordering of PersistentBalanceMap.compare().
+        int offset = index * identifierSize;
+        int result = 0;
+        for (int i = 0; i < identifierSize && result == 0; i++) {
+            result = (identifiers.get(offset + i) & 0xff) - (identifier[i] & 0xff);
+        }
+
+        return result;
+    }
+
+    public boolean identifierEquals(int index, byte[] identifier) {
+        return compareIdentifier(index, identifier) == 0;
+    }
+
+    public int indexOf(byte[] identifier) {
+
+        // This is a binary search of the sorted identifier column. As with Arrays.binarySearch(), a missing identifier
+        // produces (-(insertion point) - 1), so callers can also use the result as a lower bound for prefix searches.
+        int low = 0;
+        int high = size - 1;
+        int result = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareIdentifier(middle, identifier);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                result = middle;
+                low = high + 1;
+            }
+        }
+
+        return result >= 0 ? result : -(low + 1);
+    }
+
+    public boolean isNormalized() {
+
+        // A list is normalized when its identifiers are strictly increasing and all of its balances are positive. This
+        // is what the balance-list constructor would produce; lists that are not normalized must be built as items.
+        boolean normalized = true;
+        byte[] previousIdentifier = new byte[identifierSize];
+        byte[] identifier = new byte[identifierSize];
+        for (int i = 0; i < size && normalized; i++) {
+            getIdentifier(i, identifier);
+            normalized = getBalance(i) > 0L && (i == 0 ||
+                    PersistentBalanceMap.compare(previousIdentifier, identifier) < 0);
+            byte[] swap = previousIdentifier;
+            previousIdentifier = identifier;
+            identifier = swap;
+        }
+
+        return normalized;
+    }
+
+    public List<BalanceListItem> toItems(long listHeight) {
+
+        List<BalanceListItem> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(new BalanceListItem(getIdentifier(i), getBalance(i), getBlocksUntilFee(i), listHeight));
+        }
+
+        return items;
+    }
+
+    public void writeItems(ByteBuffer buffer) {
+
+        byte[] identifier = new byte[identifierSize];
+        for (int i = 0; i < size; i++) {
+            getIdentifier(i, identifier);
+            buffer.put(identifier);
+            buffer.putLong(getBalance(i));
+            buffer.putShort(getBlocksUntilFee(i));
+        }
+    }
+
+    public void updateDigest(MessageDigest digest) {
+
+        byte[] item = new byte[itemSize];
+        ByteBuffer itemBuffer = ByteBuffer.wrap(item);
+        for (int i = 0; i < size; i++) {
+            itemBuffer.clear();
+            for (int j = 0; j < identifierSize; j++) {
+                itemBuffer.put(identifiers.get(i * identifierSize + j));
+            }
+            itemBuffer.putLong(getBalance(i));
+            itemBuffer.putShort(getBlocksUntilFee(i));
+            digest.update(item);
+        }
+    }
+
+    public static String storageInformation() {
+        return numberCreated.sum() + "/" + bytesAllocated.get();
+    }
+}
@@ -2,6 +2,9 @@ package co.nyzo.verifier;
 
 import co.nyzo.verifier.util.PrintUtil;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
 public class BalanceListItem {
 
     public static final byte[] transferIdentifier = ByteUtil.byteArrayFromHexString("0000000000000000-" +
@@ -13,18 +16,40 @@ public class BalanceListItem {
 
     private byte[] identifier;
     private long balance;
-    private short blocksUntilFee;
 
-    public BalanceListItem(byte[] identifier, long balance) {
-        this.identifier = identifier;
-        this.balance = balance;
-        this.blocksUntilFee = ByteUtil.arraysAreEqual(identifier, transferIdentifier) ? 0 : blocksBetweenFee;
+    // The serialized balance list stores a blocks-until-fee counter for each account, and that counter is decremented
+    // for every account in every block. Instead of storing the counter, an item stores the height of the balance list
+    // at which the counter reaches zero. The counter for any list height is derived from this height, so an item that
+    // is not otherwise changed can be shared, unmodified, by the balance lists of many blocks. The transfer account is
+    // never charged a fee, so it is marked as exempt for the fee-due index of the balance map.
+    private long feeHeight;
+    private boolean feeExempt;
+
+    // This is the serialized identifier and balance, the part of the serialized item that does not depend on the
+    // height of the list. It is built when first needed and carried to derived items with the same balance, so
+    // accounts untouched by a block are not re-encoded when the next balance list is hashed.
+    private volatile byte[] identifierAndBalanceBytes = null;
+    private static final LongAdder segmentEncodeCount = new LongAdder();
+    private static final LongAdder segmentReuseCount = new LongAdder();
+
+    public BalanceListItem(byte[] identifier, long balance, short blocksUntilFee, long listHeight) {
+        this(identifier, balance, listHeight + blocksUntilFee, null);
     }
 
-    public BalanceListItem(byte[] identifier, long balance, short blocksUntilFee) {
+    private BalanceListItem(byte[] identifier, long balance, long feeHeight, byte[] identifierAndBalanceBytes) {
         this.identifier = identifier;
         this.balance = balance;
-        this.blocksUntilFee = blocksUntilFee;
+        this.feeHeight = feeHeight;
+        this.feeExempt = ByteUtil.arraysAreEqual(identifier, transferIdentifier);
+        this.identifierAndBalanceBytes = identifierAndBalanceBytes;
+    }
+
+    public static BalanceListItem newAccount(byte[] identifier, long listHeight) {
+
+        // A new account starts with a full fee interval that is decremented once for the block that creates it. The
+        // transfer account starts, and remains, at zero.
+        boolean feeExempt = ByteUtil.arraysAreEqual(identifier, transferIdentifier);
+        return new BalanceListItem(identifier, 0L, feeExempt ? listHeight : listHeight + blocksBetweenFee - 1, null);
     }
 
     public byte[] getIdentifier() {
@@ -35,29 +60,56 @@ public class BalanceListItem {
         return balance;
     }
 
-    public short getBlocksUntilFee() {
+    public short getBlocksUntilFee(long listHeight) {
 
-        return blocksUntilFee;
+        return (short) Math.max(0L, feeHeight - listHeight);
     }
 
-    public BalanceListItem resetBlocksUntilFee() {
+    public long getFeeHeight() {
+        return feeHeight;
+    }
 
-        return new BalanceListItem(identifier, balance);
+    public boolean isFeeExempt() {
+        return feeExempt;
     }
 
-    public BalanceListItem adjustByAmount(long amount) {
+    public byte[] getIdentifierAndBalanceBytes() {
+
+        byte[] bytes = identifierAndBalanceBytes;
+        if (bytes == null) {
+            bytes = new byte[FieldByteSize.identifier + FieldByteSize.transactionAmount];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.put(identifier);
+            buffer.putLong(balance);
+            identifierAndBalanceBytes = bytes;
+            segmentEncodeCount.increment();
+        } else {
+            segmentReuseCount.increment();
+        }
+
+        return bytes;
+    }
+
+    public static String segmentInformation() {
+        return segmentReuseCount.sum() + "/" + segmentEncodeCount.sum();
+    }
+
+    public BalanceListItem resetFee(long listHeight) {
 
-        return new BalanceListItem(identifier, balance + amount, blocksUntilFee);
+        // The counter is reset to the full interval and then decremented for the block being processed, as for a new
+        // account.
+        return new BalanceListItem(identifier, balance, feeExempt ? feeHeight : listHeight + blocksBetweenFee - 1,
+                identifierAndBalanceBytes);
     }
 
-    public BalanceListItem decrementBlocksUntilFee() {
+    public BalanceListItem adjustByAmount(long amount) {
 
-        return new BalanceListItem(identifier, balance, (short) Math.max(0, blocksUntilFee - 1));
+        return new BalanceListItem(identifier, balance + amount, feeHeight, null);
     }
 
     @Override
     public String toString() {
         return "[BalanceListItem(id=" + PrintUtil.compactPrintByteArray(identifier) + ",balance=" +
-                PrintUtil.printAmount(balance) + ",blocksUntilFee=" + blocksUntilFee + ")]";
+                PrintUtil.printAmount(balance) + ",feeHeight=" + feeHeight + ")]";
     }
 }
@@ -11,8 +11,6 @@ public class BalanceListManager {
     private static final int numberOfRecentLists = 4;
     private static BalanceList[] recentLists = new BalanceList[numberOfRecentLists];
 
-    private static Set<ByteBuffer> accountsInSystem = ConcurrentHashMap.newKeySet();
-
     private static final long maximumMapSize = 6;
 
     // This is a map from balance list hash to balance list.
@@ -106,7 +104,11 @@ public class BalanceListManager {
 
     public static boolean accountIsInSystem(byte[] identifier) {
 
-        return accountsInSystem.contains(ByteBuffer.wrap(identifier));
+        // Membership is checked with an indexed lookup in the frozen-edge list instead of a separate set of all
+        // accounts. Nothing needs to be rebuilt or updated when the frozen edge advances, and the answer always
+        // matches the current frozen-edge list exactly.
+        BalanceList frozenEdgeList = recentLists[0];
+        return frozenEdgeList != null && frozenEdgeList.containsIdentifier(identifier);
     }
 
     public static void updateFrozenEdge(BalanceList frozenEdgeList) {
@@ -117,13 +119,6 @@ public class BalanceListManager {
             }
             recentLists[0] = frozenEdgeList;
 
-            Set<ByteBuffer> accountsInSystem = ConcurrentHashMap.newKeySet();
-            for (BalanceListItem item : frozenEdgeList.getItems()) {
-                accountsInSystem.add(ByteBuffer.wrap(item.getIdentifier()));
-            }
-
-            BalanceListManager.accountsInSystem = accountsInSystem;
-
             balanceListMap.clear();
             balanceListMap.put(ByteBuffer.wrap(frozenEdgeList.getHash()), frozenEdgeList);
         }
@@ -81,7 +81,8 @@ public class BalanceManager {
         // Protect the seed-funding account from all transactions other than the transactions published on day 1.
         protectSeedFundingAccount(dedupedTransactions, blockHeight);
 
-        // Remove any transactions with invalid signatures.
+        // Remove any transactions with invalid signatures. The signatures are verified as a batch first.
+        Transaction.verifySignatures(dedupedTransactions);
         for (int i = dedupedTransactions.size() - 1; i >= 0; i--) {
             if (!dedupedTransactions.get(i).signatureIsValid()) {
                 dedupedTransactions.remove(i);
@@ -161,10 +162,20 @@ public class BalanceManager {
 
     public static Map<ByteBuffer, Long> makeBalanceMap(BalanceList balanceList) {
 
+        // A map-backed list is walked directly, so its identifiers are used without copying and no columns are
+        // built for it. Only a list held in columns is read from its columns.
         Map<ByteBuffer, Long> balanceMap = new HashMap<>();
         if (balanceList != null) {
-            for (BalanceListItem item : balanceList.getItems()) {
-                balanceMap.put(ByteBuffer.wrap(item.getIdentifier()), item.getBalance());
+            PersistentBalanceMap persistentMap = balanceList.getBalanceMapIfPresent();
+            if (persistentMap != null) {
+                for (BalanceListItem item : persistentMap) {
+                    balanceMap.put(ByteBuffer.wrap(item.getIdentifier()), item.getBalance());
+                }
+            } else {
+                BalanceListColumns columns = balanceList.getColumns();
+                for (int i = 0; i < columns.size(); i++) {
+                    balanceMap.put(ByteBuffer.wrap(columns.getIdentifier(i)), columns.getBalance(i));
+                }
             }
         }
 
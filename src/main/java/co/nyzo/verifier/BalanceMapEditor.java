@@ -0,0 +1,60 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+public class BalanceMapEditor {
+
+    // This applies the changes of one block to a persistent balance map. The original map is never modified. Accounts
+    // are allowed to reach a balance of zero or less while the block is processed, as they were in the hash map that
+    // this replaces; only when editing is finished are the changed accounts with non-positive balances removed. This
+    // keeps the fee counter of an account that is emptied and refilled in the same block.
+
+    private PersistentBalanceMap map;
+    private final long listHeight;
+    private final Set<ByteBuffer> changedIdentifiers = new HashSet<>();
+
+    public BalanceMapEditor(PersistentBalanceMap map, long listHeight) {
+        this.map = map;
+        this.listHeight = listHeight;
+    }
+
+    public BalanceListItem get(byte[] identifier) {
+        return map.get(identifier);
+    }
+
+    public void put(BalanceListItem item) {
+        map = map.put(item);
+        changedIdentifiers.add(ByteBuffer.wrap(item.getIdentifier()));
+    }
+
+    public void adjustBalance(byte[] identifier, long amount) {
+
+        BalanceListItem item = map.get(identifier);
+        if (item == null) {
+            item = BalanceListItem.newAccount(identifier, listHeight);
+        }
+        put(item.adjustByAmount(amount));
+    }
+
+    public PersistentBalanceMap getMap() {
+        return map;
+    }
+
+    public Set<ByteBuffer> getChangedIdentifiers() {
+        return changedIdentifiers;
+    }
+
+    public PersistentBalanceMap finish() {
+
+        for (ByteBuffer identifier : changedIdentifiers) {
+            BalanceListItem item = map.get(identifier.array());
+            if (item != null && item.getBalance() <= 0L) {
+                map = map.remove(identifier.array());
+            }
+        }
+
+        return map;
+    }
+}
@@ -0,0 +1,43 @@
+package co.nyzo.verifier;
+
+class BalanceMapNode {
+
+    // Nodes are immutable. Each node records the height, size, balance sum, and minimum fee height of its subtree, so
+    // the map can be rebalanced, indexed by position, summed, and searched for accounts owing fees without walking all
+    // of its items.
+
+    final BalanceListItem item;
+    final BalanceMapNode left;
+    final BalanceMapNode right;
+    final int height;
+    final int size;
+    final long balanceSum;
+    final long minimumFeeHeight;
+
+    BalanceMapNode(BalanceListItem item, BalanceMapNode left, BalanceMapNode right) {
+        this.item = item;
+        this.left = left;
+        this.right = right;
+        this.height = Math.max(height(left), height(right)) + 1;
+        this.size = size(left) + size(right) + 1;
+        this.balanceSum = balanceSum(left) + balanceSum(right) + item.getBalance();
+        this.minimumFeeHeight = Math.min(Math.min(minimumFeeHeight(left), minimumFeeHeight(right)),
+                item.isFeeExempt() ? Long.MAX_VALUE : item.getFeeHeight());
+    }
+
+    static int height(BalanceMapNode node) {
+        return node == null ? 0 : node.height;
+    }
+
+    static int size(BalanceMapNode node) {
+        return node == null ? 0 : node.size;
+    }
+
+    static long balanceSum(BalanceMapNode node) {
+        return node == null ? 0L : node.balanceSum;
+    }
+
+    static long minimumFeeHeight(BalanceMapNode node) {
+        return node == null ? Long.MAX_VALUE : node.minimumFeeHeight;
+    }
+}
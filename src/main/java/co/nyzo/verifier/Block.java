@@ -6,6 +6,7 @@ import co.nyzo.verifier.util.*;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Block implements MessageObject {
 
@@ -54,7 +55,7 @@ public class Block implements MessageObject {
                                                    // milliseconds
     private long verificationTimestamp;            // 8 bytes; 64-bit Unix timestamp of when the verifier creates the
                                                    // block, in milliseconds
-    private List<Transaction> transactions;        // 4 bytes for number + variable
+    private volatile List<Transaction> transactions;  // 4 bytes for number + variable
     private byte[] balanceListHash;                // 32 bytes (this is the double-SHA-256 of the account balance list)
     private byte[] verifierIdentifier;             // 32 bytes
     private byte[] verifierSignature;              // 64 bytes
@@ -63,6 +64,21 @@ public class Block implements MessageObject {
     private SignatureState signatureState = SignatureState.Undetermined;
     private CycleInformation cycleInformation = null;
 
+    // The hash is computed at most once. It depends only on the verifier signature, so it is cleared when the block is
+    // signed.
+    private volatile byte[] hash = null;
+    private static final LongAdder hashCacheHitCount = new LongAdder();
+
+    // Blocks read without transaction validation do not decode their transactions until they are requested. Until
+    // then, the transactions are held as their serialized bytes, so scans that only need header fields do not decode
+    // them. The serialized bytes are always used for serialization of these blocks, even after the transactions are
+    // decoded, so the bytes, and the hash computed from them, are exactly those that were read. If the block was read
+    // from a buffer that holds more than the block, such as a block file with its balance list, the bytes are copied
+    // so that the block does not keep the rest of the buffer alive.
+    private final ByteBuffer transactionBytes;
+    private int numberOfTransactions = 0;
+    private static final LongAdder lazyTransactionDecodeCount = new LongAdder();
+
     public Block(int blockchainVersion, long height, byte[] previousBlockHash, long startTimestamp,
                  List<Transaction> transactions, byte[] balanceListHash) {
 
@@ -72,6 +88,7 @@ public class Block implements MessageObject {
         this.startTimestamp = startTimestamp;
         this.verificationTimestamp = System.currentTimeMillis();
         this.transactions = new ArrayList<>(transactions);
+        this.transactionBytes = null;
         this.balanceListHash = balanceListHash;
 
         try {
@@ -92,6 +109,7 @@ public class Block implements MessageObject {
         this.startTimestamp = startTimestamp;
         this.verificationTimestamp = System.currentTimeMillis();
         this.transactions = new ArrayList<>(transactions);
+        this.transactionBytes = null;
         this.balanceListHash = balanceListHash;
         this.verifierIdentifier = KeyUtil.identifierForSeed(verifierSeed);
         this.verifierSignature = SignatureUtil.signBytes(getBytes(false), verifierSeed);
@@ -107,6 +125,24 @@ public class Block implements MessageObject {
         this.startTimestamp = startTimestamp;
         this.verificationTimestamp = verificationTimestamp;
         this.transactions = validateTransactions ? validTransactions(transactions, startTimestamp) : transactions;
+        this.transactionBytes = null;
+        this.balanceListHash = balanceListHash;
+        this.verifierIdentifier = verifierIdentifier;
+        this.verifierSignature = verifierSignature;
+    }
+
+    private Block(int blockchainVersion, long height, byte[] previousBlockHash, long startTimestamp,
+                  long verificationTimestamp, ByteBuffer transactionBytes, int numberOfTransactions,
+                  byte[] balanceListHash, byte[] verifierIdentifier, byte[] verifierSignature) {
+
+        this.blockchainVersion = limitBlockchainVersion(blockchainVersion);
+        this.height = height;
+        this.previousBlockHash = previousBlockHash;
+        this.startTimestamp = startTimestamp;
+        this.verificationTimestamp = verificationTimestamp;
+        this.transactions = null;
+        this.transactionBytes = transactionBytes;
+        this.numberOfTransactions = numberOfTransactions;
         this.balanceListHash = balanceListHash;
         this.verifierIdentifier = verifierIdentifier;
         this.verifierSignature = verifierSignature;
@@ -118,6 +154,8 @@ public class Block implements MessageObject {
 
     private static List<Transaction> validTransactions(List<Transaction> transactions, long startTimestamp) {
 
+        Transaction.verifySignatures(transactions);
+
         List<Transaction> validTransactions = new ArrayList<>();
         Set<ByteBuffer> signatures = new HashSet<>();
         long endTimestamp = startTimestamp + Block.blockDuration;
@@ -158,11 +196,54 @@ public class Block implements MessageObject {
     }
 
     public List<Transaction> getTransactions() {
+
+        // Transactions are decoded outside the lock: decoding may look up other blocks. If two threads decode at the
+        // same time, both receive the list that is published first.
+        List<Transaction> transactions = this.transactions;
+        if (transactions == null) {
+            ByteBuffer buffer = transactionBytes.duplicate();
+            List<Transaction> decodedTransactions = new ArrayList<>(numberOfTransactions);
+            for (int i = 0; i < numberOfTransactions; i++) {
+                decodedTransactions.add(Transaction.fromByteBuffer(buffer, height, previousBlockHash, false));
+            }
+
+            synchronized (this) {
+                if (this.transactions == null) {
+                    this.transactions = decodedTransactions;
+                    lazyTransactionDecodeCount.increment();
+                }
+                transactions = this.transactions;
+            }
+        }
+
         return transactions;
     }
 
+    public int getNumberOfTransactions() {
+
+        List<Transaction> transactions = this.transactions;
+        return transactions == null ? numberOfTransactions : transactions.size();
+    }
+
+    public static long getLazyTransactionDecodeCount() {
+        return lazyTransactionDecodeCount.sum();
+    }
+
     public byte[] getHash() {
-        return HashUtil.doubleSHA256(verifierSignature);
+
+        byte[] hash = this.hash;
+        if (hash == null) {
+            hash = HashUtil.doubleSHA256(verifierSignature);
+            this.hash = hash;
+        } else {
+            hashCacheHitCount.increment();
+        }
+
+        return hash;
+    }
+
+    public static long getHashCacheHitCount() {
+        return hashCacheHitCount.sum();
     }
 
     public byte[] getBalanceListHash() {
@@ -206,7 +287,7 @@ public class Block implements MessageObject {
     public long getTransactionFees() {
 
         long fees = 0L;
-        for (Transaction transaction : transactions) {
+        for (Transaction transaction : getTransactions()) {
             fees += transaction.getFee();
         }
 
@@ -226,8 +307,12 @@ public class Block implements MessageObject {
                 FieldByteSize.timestamp +                      // verification timestamp
                 4 +                                            // number of transactions
                 FieldByteSize.hash;                            // balance-list hash
-        for (Transaction transaction : transactions) {
-            size += transaction.getByteSize();
+        if (transactionBytes != null) {
+            size += transactionBytes.remaining();
+        } else {
+            for (Transaction transaction : transactions) {
+                size += transaction.getByteSize();
+            }
         }
         if (includeSignature) {
             size += FieldByteSize.identifier + FieldByteSize.signature;
@@ -413,9 +498,14 @@ public class Block implements MessageObject {
         buffer.put(previousBlockHash);
         buffer.putLong(startTimestamp);
         buffer.putLong(verificationTimestamp);
-        buffer.putInt(transactions.size());
-        for (Transaction transaction : transactions) {
-            buffer.put(transaction.getBytes());
+        if (transactionBytes != null) {
+            buffer.putInt(numberOfTransactions);
+            buffer.put(transactionBytes.duplicate());
+        } else {
+            buffer.putInt(transactions.size());
+            for (Transaction transaction : transactions) {
+                buffer.put(transaction.getBytes());
+            }
         }
         buffer.put(balanceListHash);
         if (includeSignature) {
@@ -431,6 +521,8 @@ public class Block implements MessageObject {
         this.verificationTimestamp = verificationTimestamp;
         this.verifierIdentifier = KeyUtil.identifierForSeed(signerSeed);
         this.verifierSignature = SignatureUtil.signBytes(getBytes(false), signerSeed);
+        this.hash = null;
+        this.signatureState = SignatureState.Undetermined;
     }
 
     public void sign(byte[] signerSeed) {
@@ -448,6 +540,38 @@ public class Block implements MessageObject {
         return signatureState == SignatureState.Valid;
     }
 
+    public boolean signaturesAreValid() {
+
+        // This verifies the block signature and all undetermined transaction signatures in a single batch, storing
+        // the results for later calls to signatureIsValid() on the block and its transactions. Only the block
+        // signature determines the return value; invalid transactions are removed when the balance list is
+        // calculated.
+        if (signatureState == SignatureState.Undetermined) {
+            List<Transaction> undetermined = Transaction.undeterminedSignatures(getTransactions());
+            int count = undetermined.size() + 1;
+            byte[][] signatures = new byte[count][];
+            byte[][] signedBytes = new byte[count][];
+            byte[][] identifiers = new byte[count][];
+            signatures[0] = verifierSignature;
+            signedBytes[0] = getBytes(false);
+            identifiers[0] = verifierIdentifier;
+            for (int i = 1; i < count; i++) {
+                Transaction transaction = undetermined.get(i - 1);
+                signatures[i] = transaction.getSignature();
+                signedBytes[i] = transaction.getBytes(true);
+                identifiers[i] = transaction.getSenderIdentifier();
+            }
+
+            BitSet valid = SignatureUtil.signaturesAreValid(signatures, signedBytes, identifiers);
+            signatureState = valid.get(0) ? SignatureState.Valid : SignatureState.Invalid;
+            for (int i = 1; i < count; i++) {
+                undetermined.get(i - 1).setSignatureValid(valid.get(i));
+            }
+        }
+
+        return signatureState == SignatureState.Valid;
+    }
+
     public long getMinimumVoteTimestamp() {
 
         long timestamp = Long.MAX_VALUE;
@@ -500,6 +624,7 @@ public class Block implements MessageObject {
 
     public static Block fromByteBuffer(ByteBuffer buffer, boolean validateTransactions) {
 
+        int blockStart = buffer.position();
         ShortLong versionAndHeight = ShortLong.fromByteBuffer(buffer);
         int blockchainVersion = versionAndHeight.getShortValue();
         long blockHeight = versionAndHeight.getLongValue();
@@ -508,9 +633,26 @@ public class Block implements MessageObject {
         long startTimestamp = buffer.getLong();
         long verificationTimestamp = buffer.getLong();
         int numberOfTransactions = buffer.getInt();
-        List<Transaction> transactions = new ArrayList<>();
-        for (int i = 0; i < numberOfTransactions; i++) {
-            transactions.add(Transaction.fromByteBuffer(buffer, blockHeight, previousBlockHash, false));
+
+        // Transaction validation only needs to occur on blocks past the frozen edge. Without validation, the
+        // transactions are skipped rather than decoded, and they are decoded later only if they are requested.
+        validateTransactions &= blockHeight > BlockManager.getFrozenEdgeHeight();
+        List<Transaction> transactions = null;
+        ByteBuffer transactionBytes = null;
+        if (validateTransactions) {
+            transactions = new ArrayList<>();
+            for (int i = 0; i < numberOfTransactions; i++) {
+                transactions.add(Transaction.fromByteBuffer(buffer, blockHeight, previousBlockHash, false));
+            }
+        } else {
+            int transactionStart = buffer.position();
+            for (int i = 0; i < numberOfTransactions; i++) {
+                Transaction.skipInBlockBuffer(buffer);
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(transactionStart);
+            view.limit(buffer.position());
+            transactionBytes = view.slice().asReadOnlyBuffer();
         }
 
         byte[] balanceListHash = new byte[FieldByteSize.hash];
@@ -520,11 +662,20 @@ public class Block implements MessageObject {
         byte[] verifierSignature = new byte[FieldByteSize.signature];
         buffer.get(verifierSignature);
 
-        // Transaction validation only needs to occur on blocks past the frozen edge.
-        validateTransactions &= blockHeight > BlockManager.getFrozenEdgeHeight();
+        // A view of a buffer that holds more than this block would keep the entire buffer alive for as long as the
+        // block is held, so the transaction bytes are copied in that case.
+        if (transactionBytes != null && buffer.capacity() > buffer.position() - blockStart) {
+            byte[] transactionArray = new byte[transactionBytes.remaining()];
+            transactionBytes.get(transactionArray);
+            transactionBytes = ByteBuffer.wrap(transactionArray).asReadOnlyBuffer();
+        }
 
-        return new Block(blockchainVersion, blockHeight, previousBlockHash, startTimestamp, verificationTimestamp,
-                transactions, balanceListHash, verifierIdentifier, verifierSignature, validateTransactions);
+        return transactions == null ?
+                new Block(blockchainVersion, blockHeight, previousBlockHash, startTimestamp, verificationTimestamp,
+                        transactionBytes, numberOfTransactions, balanceListHash, verifierIdentifier,
+                        verifierSignature) :
+                new Block(blockchainVersion, blockHeight, previousBlockHash, startTimestamp, verificationTimestamp,
+                        transactions, balanceListHash, verifierIdentifier, verifierSignature, true);
     }
 
     public static BalanceList balanceListForNextBlock(Block previousBlock, BalanceList previousBalanceList,
@@ -539,7 +690,7 @@ public class Block implements MessageObject {
 
                 // For the Genesis block, start with an empty/zero values. For all others, start with the information
                 // from the previous block's balance list.
-                List<BalanceListItem> previousBalanceItems;
+                PersistentBalanceMap previousBalanceMap;
                 List<byte[]> previousVerifiers;
                 long blockHeight;
                 long previousRolloverFees;
@@ -548,7 +699,7 @@ public class Block implements MessageObject {
                 Map<ByteBuffer, Transaction> pendingCycleTransactions;
                 List<ApprovedCycleTransaction> recentlyApprovedCycleTransactions;
                 if (previousBlock == null) {
-                    previousBalanceItems = new ArrayList<>();
+                    previousBalanceMap = PersistentBalanceMap.empty();
                     previousVerifiers = new ArrayList<>();
                     blockHeight = 0L;
                     previousRolloverFees = 0;
@@ -558,7 +709,7 @@ public class Block implements MessageObject {
                     recentlyApprovedCycleTransactions = new ArrayList<>();
                 } else {
                     blockHeight = previousBlock.getBlockHeight() + 1L;
-                    previousBalanceItems = previousBalanceList.getItems();
+                    previousBalanceMap = previousBalanceList.getBalanceMap();
                     previousRolloverFees = previousBalanceList.getRolloverFees();
 
                     // Get the previous verifiers from the previous block. Add the newest and remove the oldest.
@@ -585,11 +736,9 @@ public class Block implements MessageObject {
                             new ArrayList<>(previousBalanceList.getRecentlyApprovedCycleTransactions());
                 }
 
-                // Make a map of the identifiers to balance list items.
-                Map<ByteBuffer, BalanceListItem> identifierToItemMap = new HashMap<>();
-                for (BalanceListItem item : previousBalanceItems) {
-                    identifierToItemMap.put(ByteBuffer.wrap(item.getIdentifier()), item);
-                }
+                // Start from the previous balance map. The editor records changes in a new map that shares all
+                // unchanged accounts with the previous map, which is not modified.
+                BalanceMapEditor balanceMapEditor = new BalanceMapEditor(previousBalanceMap, blockHeight);
 
                 // Remove any invalid transactions. The previous block is only null for the Genesis block. This also
                 // only needs to be performed on blocks past the frozen edge, as blocks that have been frozen are no
@@ -613,12 +762,12 @@ public class Block implements MessageObject {
                         byte[] senderIdentifier = transaction.getType() == Transaction.typeCycle ?
                                 BalanceListItem.cycleAccountIdentifier : transaction.getSenderIdentifier();
                         if (transaction.getType() != Transaction.typeCoinGeneration) {
-                            adjustBalance(senderIdentifier, -transaction.getAmount(), identifierToItemMap);
+                            balanceMapEditor.adjustBalance(senderIdentifier, -transaction.getAmount());
                         }
 
                         long amountAfterFee = transaction.getAmount() - transaction.getFee();
                         if (amountAfterFee > 0) {
-                            adjustBalance(transaction.getReceiverIdentifier(), amountAfterFee, identifierToItemMap);
+                            balanceMapEditor.adjustBalance(transaction.getReceiverIdentifier(), amountAfterFee);
                         }
 
                         if (transaction.getType() == Transaction.typeStandard) {
@@ -634,7 +783,7 @@ public class Block implements MessageObject {
                 // Process cycle and cycle-signature transactions in version 2 or later.
                 if (blockchainVersion >= 2) {
                     processV2CycleTransactions(pendingCycleTransactions, recentlyApprovedCycleTransactions,
-                            transactions, blockHeight, identifierToItemMap);
+                            transactions, blockHeight, balanceMapEditor);
                 }
 
                 // For a blockchain versions greater than 0, move 1% of the organic transaction fees to the cycle
@@ -645,19 +794,19 @@ public class Block implements MessageObject {
 
                     // Subtract the amount from the fees this block and move the funds to the cycle account.
                     feesThisBlock -= cycleTransferAmount;
-                    adjustBalance(BalanceListItem.cycleAccountIdentifier, cycleTransferAmount, identifierToItemMap);
+                    balanceMapEditor.adjustBalance(BalanceListItem.cycleAccountIdentifier, cycleTransferAmount);
                 }
 
-                // Subtract fees for all balance list items that owe fees.
+                // Subtract fees for all balance list items that owe fees. These are the items whose fee counter
+                // reached zero in the previous balance list. The balance map indexes them by fee height, so accounts
+                // that do not owe fees are not examined.
                 long periodicAccountFees = 0L;
-                for (ByteBuffer identifier : identifierToItemMap.keySet()) {
-                    BalanceListItem item = identifierToItemMap.get(identifier);
-                    if (item.getBlocksUntilFee() <= 0 &&
-                            !ByteUtil.arraysAreEqual(identifier.array(), BalanceListItem.transferIdentifier)) {
+                for (BalanceListItem item : balanceMapEditor.getMap().itemsWithFeeDue(blockHeight - 1L)) {
+                    if (!ByteUtil.arraysAreEqual(item.getIdentifier(), BalanceListItem.transferIdentifier)) {
 
                         // In version 0 of the blockchain, charge μ1 every 500 blocks. In version 1 of the blockchain,
                         // charge μ100 every 500 blocks for all accounts less than ∩1. Always reset the fee counter.
-                        item = item.resetBlocksUntilFee();
+                        item = item.resetFee(blockHeight);
                         if (blockchainVersion == 0 && item.getBalance() > 0L) {
                             item = item.adjustByAmount(-1L);
                             periodicAccountFees++;
@@ -666,7 +815,7 @@ public class Block implements MessageObject {
                             item = item.adjustByAmount(-1L * fee);
                             periodicAccountFees += fee;
                         }
-                        identifierToItemMap.put(identifier, item);
+                        balanceMapEditor.put(item);
                     }
                 }
 
@@ -677,22 +826,17 @@ public class Block implements MessageObject {
                 long feesPerVerifier = totalFees / verifiers.size();
                 if (feesPerVerifier > 0L) {
                     for (byte[] verifier : verifiers) {
-                        adjustBalance(verifier, feesPerVerifier, identifierToItemMap);
+                        balanceMapEditor.adjustBalance(verifier, feesPerVerifier);
                     }
                 }
 
-                // Make the new balance items from the balance map, decrementing the blocks-until-fee counter for each.
-                long micronyzosInSystem = 0L;
-                List<BalanceListItem> balanceItems = new ArrayList<>();
-                for (ByteBuffer identifier : identifierToItemMap.keySet()) {
-                    BalanceListItem item = identifierToItemMap.get(identifier);
-                    if (item.getBalance() > 0L) {
-                        balanceItems.add(item.decrementBlocksUntilFee());
-                        micronyzosInSystem += item.getBalance();
-                    }
-                }
+                // Make the new balance map, removing accounts without positive balances. The blocks-until-fee counters
+                // are derived from fee heights, so they do not need to be decremented, and the balance sum is
+                // maintained by the map.
+                PersistentBalanceMap balanceMap = balanceMapEditor.finish();
+                long micronyzosInSystem = balanceMap.balanceSum();
 
-                // Make the balance list. The pairs are sorted in the constructor.
+                // Make the balance list. The map is already sorted.
                 byte rolloverFees = (byte) (totalFees % verifiers.size());
                 micronyzosInSystem += rolloverFees;
                 if (micronyzosInSystem == Transaction.micronyzosInSystem) {
@@ -703,7 +847,7 @@ public class Block implements MessageObject {
                             transactionSumFromLockedAccounts;
 
                     result = new BalanceList(blockchainVersion, blockHeight, rolloverFees, previousVerifiers,
-                            balanceItems, unlockThreshold, unlockTransferSum, pendingCycleTransactions,
+                            balanceMap, unlockThreshold, unlockTransferSum, pendingCycleTransactions,
                             recentlyApprovedCycleTransactions);
                 }
             }
@@ -714,22 +858,10 @@ public class Block implements MessageObject {
         return result;
     }
 
-    private static void adjustBalance(byte[] identifier, long amount,
-                                      Map<ByteBuffer, BalanceListItem> identifierToItemMap) {
-
-        ByteBuffer identifierBuffer = ByteBuffer.wrap(identifier);
-        BalanceListItem item = identifierToItemMap.get(identifierBuffer);
-        if (item == null) {
-            item = new BalanceListItem(identifier, 0L);
-        }
-        item = item.adjustByAmount(amount);
-        identifierToItemMap.put(identifierBuffer, item);
-    }
-
     private static void processV2CycleTransactions(Map<ByteBuffer, Transaction> pendingCycleTransactions,
                                                    List<ApprovedCycleTransaction> recentlyApprovedCycleTransactions,
                                                    List<Transaction> transactions, long blockHeight,
-                                                   Map<ByteBuffer, BalanceListItem> identifierToItemMap) {
+                                                   BalanceMapEditor balanceMapEditor) {
 
         // Add all cycle transactions to the pending map.
         for (Transaction transaction : transactions) {
@@ -779,8 +911,7 @@ public class Block implements MessageObject {
         for (ApprovedCycleTransaction transaction : recentlyApprovedCycleTransactions) {
             recentCycleTransactionSum += transaction.getAmount();
         }
-        ByteBuffer cycleAccountIdentifier = ByteBuffer.wrap(BalanceListItem.cycleAccountIdentifier);
-        BalanceListItem cycleBalanceItem = identifierToItemMap.get(cycleAccountIdentifier);
+        BalanceListItem cycleBalanceItem = balanceMapEditor.get(BalanceListItem.cycleAccountIdentifier);
         long cycleAccountBalance = cycleBalanceItem.getBalance();
         long maximumCycleTransactionAmount = Math.min(maximumCycleTransactionSumPerInterval -
                 recentCycleTransactionSum, cycleAccountBalance);
@@ -829,10 +960,10 @@ public class Block implements MessageObject {
             recentlyApprovedCycleTransactions.add(approvedListEntry);
 
             // Adjust the balance of the cycle account and the receiver account.
-            adjustBalance(BalanceListItem.cycleAccountIdentifier, -approvedCycleTransaction.getAmount(),
-                    identifierToItemMap);
-            adjustBalance(approvedCycleTransaction.getReceiverIdentifier(), approvedCycleTransaction.getAmount(),
-                    identifierToItemMap);
+            balanceMapEditor.adjustBalance(BalanceListItem.cycleAccountIdentifier,
+                    -approvedCycleTransaction.getAmount());
+            balanceMapEditor.adjustBalance(approvedCycleTransaction.getReceiverIdentifier(),
+                    approvedCycleTransaction.getAmount());
         }
     }
 
@@ -981,7 +1112,7 @@ public class Block implements MessageObject {
         // The excess transaction count is the number of transactions beyond the maximum number that would have been
         // included if this verifier assembled the block. If the block has fewer transactions than this maximum, a value
         // of zero is returned.
-        return Math.max(0, getTransactions().size() - BlockchainMetricsManager.maximumTransactionsForBlockAssembly());
+        return Math.max(0, getNumberOfTransactions() - BlockchainMetricsManager.maximumTransactionsForBlockAssembly());
     }
 
     public static long getBlockDelayHeight() {
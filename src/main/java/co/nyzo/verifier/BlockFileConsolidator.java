@@ -142,12 +142,12 @@ public class BlockFileConsolidator {
             }
         }
 
-        // Delete the offset file. If needed, this file will be rebuilt by HistoricalBlockManager to reflect the
-        // contents of the new consolidated file.
+        // Delete the offset file before the consolidated file is replaced, so a stale offset file cannot exist.
         HistoricalBlockManager.offsetFileForHeight(fileIndex * BlockManager.blocksPerFile).delete();
 
-        // Write the combined file.
-        BlockManager.writeBlocksToFile(blocks, balanceLists, consolidatedFile);
+        // Write the combined file. The offset file for the new file is written in the same pass. If that write does not
+        // complete, HistoricalBlockManager will rebuild the offset file.
+        BlockManager.writeBlocksToFile(blocks, balanceLists, consolidatedFile, true);
 
         LogUtil.println("consolidated " + individualFiles.size() + " files to a single file for start height " +
                 startBlockHeight + " on " + Verifier.getNickname() + "; used " + balanceLists.size() +
@@ -114,14 +114,16 @@ public class BlockManager {
         return block;
     }
 
-    public static synchronized List<Block> loadBlocksInFile(File file, long minimumHeight, long maximumHeight) {
+    public static List<Block> loadBlocksInFile(File file, long minimumHeight, long maximumHeight) {
 
+        // This method is not synchronized. Block files are never modified in place: they are written to a temporary
+        // file and renamed into position, so an open file is immutable and can be read by any number of threads without
+        // holding the lock that freezeBlock() and setFrozenEdge() use. The file is read with positional reads, which
+        // do not share a file position between readers.
         List<Block> blocks = new ArrayList<>();
         if (file.exists()) {
-            Path path = Paths.get(file.getAbsolutePath());
             try {
-                byte[] fileBytes = Files.readAllBytes(path);
-                ByteBuffer buffer = ByteBuffer.wrap(fileBytes);
+                ByteBuffer buffer = FileUtil.readFile(file);
                 int numberOfBlocks = buffer.getShort();
                 Block previousBlock = null;
                 for (int i = 0; i < numberOfBlocks && (previousBlock == null ||
@@ -146,6 +148,12 @@ public class BlockManager {
 
     public static boolean writeBlocksToFile(List<Block> blocks, List<BalanceList> balanceLists, File file) {
 
+        return writeBlocksToFile(blocks, balanceLists, file, false);
+    }
+
+    public static boolean writeBlocksToFile(List<Block> blocks, List<BalanceList> balanceLists, File file,
+                                            boolean writeOffsetFile) {
+
         Map<Long, BalanceList> balanceListMap = new HashMap<>();
         for (BalanceList balanceList : balanceLists) {
             balanceListMap.put(balanceList.getBlockHeight(), balanceList);
@@ -178,12 +186,21 @@ public class BlockManager {
             }
         }
 
+        // For consolidated files, the offset index used by HistoricalBlockManager is recorded in the same pass that
+        // writes the blocks, so the file is indexed as soon as it is written.
+        int[] offsets = writeOffsetFile ? HistoricalBlockManager.emptyOffsets() : null;
+
         byte[] bytes = new byte[byteSize];
         ByteBuffer buffer = ByteBuffer.wrap(bytes);
         buffer.putShort((short) blocks.size());  // number of blocks
         for (int i = 0; i < blocks.size(); i++) {
             Block block = blocks.get(i);
+            int blockStartOffset = buffer.position();
             buffer.put(block.getBytes());
+            if (offsets != null) {
+                HistoricalBlockManager.setOffsets(offsets, block.getBlockHeight(), blockStartOffset,
+                        buffer.position());
+            }
             if (i == 0 || (blocks.get(i - 1).getBlockHeight() != (block.getBlockHeight() - 1))) {
 
                 BalanceList balanceList = balanceListMap.get(block.getBlockHeight());
@@ -198,8 +215,15 @@ public class BlockManager {
         if (successful) {
             try {
                 file.getParentFile().mkdirs();
-                FileUtil.writeFile(Paths.get(file.getAbsolutePath()), bytes);
-                successful = true;
+                successful = FileUtil.writeFile(Paths.get(file.getAbsolutePath()), bytes);
+
+                // If the offset file cannot be written, HistoricalBlockManager is told to check this file again.
+                if (successful && offsets != null && !blocks.isEmpty()) {
+                    long startHeight = blocks.get(0).getBlockHeight();
+                    if (!HistoricalBlockManager.writeOffsetFile(startHeight, offsets)) {
+                        HistoricalBlockManager.offsetFileWriteFailed(startHeight);
+                    }
+                }
             } catch (Exception reportOnly) {
                 System.err.println(PrintUtil.printException(reportOnly));
             }
@@ -221,18 +245,53 @@ public class BlockManager {
         }
     }
 
-    public static synchronized void freezeBlock(Block block, byte[] previousBlockHash, BalanceList balanceList,
-                                                List<ByteBuffer> cycleVerifiers) {
+    public static void freezeBlock(Block block, byte[] previousBlockHash, BalanceList balanceList,
+                                   List<ByteBuffer> cycleVerifiers) {
+
+        // With the asynchronous writer, space for the block is reserved before the lock is taken, so a writer that
+        // is behind slows freezing without holding the lock. Space that is not used is returned.
+        boolean reserved = FrozenBlockWriter.isEnabled() && FrozenBlockWriter.reserveSpace();
+        boolean queued = false;
+        try {
+            queued = freezeBlockWithLock(block, previousBlockHash, balanceList, cycleVerifiers, reserved);
+        } finally {
+            if (reserved && !queued) {
+                FrozenBlockWriter.releaseSpace();
+            }
+        }
+    }
+
+    private static synchronized boolean freezeBlockWithLock(Block block, byte[] previousBlockHash,
+                                                            BalanceList balanceList, List<ByteBuffer> cycleVerifiers,
+                                                            boolean spaceReserved) {
 
         // Only continue if the block's previous hash is correct and the balance list is available.
+        boolean queued = false;
         if (ByteUtil.arraysAreEqual(previousBlockHash, block.getPreviousBlockHash()) && balanceList != null) {
 
             try {
                 setFrozenEdge(block, cycleVerifiers);
                 BalanceListManager.updateFrozenEdge(balanceList);
 
-                writeBlocksToFile(Arrays.asList(block), Arrays.asList(balanceList),
-                        individualFileForBlockHeight(block.getBlockHeight()));
+                // With the asynchronous writer, the block is queued and written outside this lock. Until it is
+                // written, it is available from the block map and the balance list manager.
+                // The chain manifest is updated after the block is written.
+                if (FrozenBlockWriter.isEnabled()) {
+                    FrozenBlockWriter.enqueue(block, balanceList);
+                    queued = spaceReserved;
+                } else if (SegmentedBlockStore.isEnabled()) {
+                    if (SegmentedBlockStore.writeBlock(block, balanceList)) {
+                        ChainManifest.blockWritten(block);
+                    }
+                } else {
+                    if (writeBlocksToFile(Arrays.asList(block), Arrays.asList(balanceList),
+                            individualFileForBlockHeight(block.getBlockHeight()))) {
+                        ChainManifest.blockWritten(block);
+                    }
+                }
+                if (!FrozenBlockWriter.isEnabled()) {
+                    BalanceListCheckpoints.frozenBlockWritten(block, balanceList);
+                }
 
                 if (block.getBlockHeight() == 0L) {
 
@@ -245,6 +304,8 @@ public class BlockManager {
                 System.err.println("exception writing block to file " + reportOnly.getMessage());
             }
         }
+
+        return queued;
     }
 
     public static File individualFileForBlockHeight(long blockHeight) {
@@ -266,9 +327,11 @@ public class BlockManager {
 
         // Try to first load the block from the individual file. If the block is not there, extract the consolidated
         // file and try to load the block from there. In time, no consolidated files should need to be read, but this
-        // provides a smooth transition from the old, more aggressive behavior of the file consolidator.
-        List<Block> blocks = loadBlocksInFile(individualFileForBlockHeight(blockHeight), blockHeight, blockHeight);
-        Block block = null;
+        // provides a smooth transition from the old, more aggressive behavior of the file consolidator. When the
+        // segmented block store is enabled, it is checked before either file.
+        Block block = SegmentedBlockStore.isEnabled() ? SegmentedBlockStore.blockForHeight(blockHeight) : null;
+        List<Block> blocks = block != null ? Collections.singletonList(block) :
+                loadBlocksInFile(individualFileForBlockHeight(blockHeight), blockHeight, blockHeight);
 
         if (!blocks.isEmpty() && blocks.get(0).getBlockHeight() == blockHeight) {
             block = blocks.get(0);
@@ -302,15 +365,50 @@ public class BlockManager {
                 genesisBlockStartTimestamp = genesisBlock.getStartTimestamp();
                 setFrozenEdge(genesisBlock, null);
 
-                // Try to load the highest block that has not yet been consolidated.
-                long highestIndividualFileHeight = findHighestIndividualFileHeight();
+                // If the chain manifest is valid, load the highest stored block directly from the height it
+                // records. The block at the manifest height must match the hash in the manifest.
+                Block manifestBlock = null;
+                ChainManifest manifest = ChainManifest.load();
+                if (manifest != null) {
+                    BalanceListCheckpoints.recordCheckpointHeight(manifest.getCheckpointHeight());
+                }
+                if (manifest != null && manifest.getFrozenEdgeHeight() > getFrozenEdgeHeight()) {
+                    long manifestHeight = manifest.highestStoredHeight();
+                    manifestBlock = loadBlockFromFile(manifestHeight);
+                    if (manifestBlock != null && manifestHeight == manifest.getFrozenEdgeHeight() &&
+                            !ByteUtil.arraysAreEqual(manifestBlock.getHash(), manifest.getFrozenEdgeHash())) {
+                        manifestBlock = null;
+                    }
+                }
+
+                if (manifestBlock != null) {
+                    setFrozenEdge(manifestBlock, null);
+                    System.out.println("set frozen edge to " + manifestBlock.getBlockHeight() + " from chain manifest");
+                }
+
+                // Otherwise, try to load the highest block that has not yet been consolidated. If the segmented block
+                // store is enabled, its highest block is also considered.
+                long highestIndividualFileHeight = -1L;
+                if (manifestBlock == null) {
+                    highestIndividualFileHeight = findHighestIndividualFileHeight();
+                    if (SegmentedBlockStore.isEnabled()) {
+                        highestIndividualFileHeight = Math.max(highestIndividualFileHeight,
+                                SegmentedBlockStore.highestHeight());
+                    }
+                }
                 if (highestIndividualFileHeight > getFrozenEdgeHeight()) {
 
-                    File individualFile = individualFileForBlockHeight(highestIndividualFileHeight);
-                    List<Block> individualBlockList = loadBlocksInFile(individualFile, highestIndividualFileHeight,
-                            highestIndividualFileHeight);
-                    if (individualBlockList.size() > 0) {
-                        Block block = individualBlockList.get(0);
+                    Block block = loadBlockFromFile(highestIndividualFileHeight);
+
+                    // If the highest block was not completely written by the asynchronous writer, fall back to the
+                    // highest height that the writer recorded as durable.
+                    long durableHeight = FrozenBlockWriter.getDurableHeight();
+                    if (block == null && durableHeight > getFrozenEdgeHeight() &&
+                            durableHeight < highestIndividualFileHeight) {
+                        block = loadBlockFromFile(durableHeight);
+                    }
+
+                    if (block != null) {
                         setFrozenEdge(block, null);
                         System.out.println("set frozen edge to " + block.getBlockHeight() + " in individual loading");
                     }
@@ -328,6 +426,9 @@ public class BlockManager {
                     }
                 }
 
+                // The frozen edge is now the highest block actually loaded from disk.
+                FrozenBlockWriter.resetDurableHeight(getFrozenEdgeHeight());
+
                 // Load the balance lists of the frozen edge into the balance list manager.
                 BalanceList frozenEdgeBalanceList = loadBalanceListFromFileForHeight(getFrozenEdgeHeight());
                 BalanceListManager.updateFrozenEdge(frozenEdgeBalanceList);
@@ -341,7 +442,18 @@ public class BlockManager {
 
     public static BalanceList loadBalanceListFromFileForHeight(long blockHeight) {
 
-        BalanceList balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
+        BalanceList balanceList = null;
+        if (SegmentedBlockStore.isEnabled()) {
+            balanceList = SegmentedBlockStore.balanceListForHeight(blockHeight);
+        }
+
+        if (balanceList == null) {
+            balanceList = loadBalanceListFromFile(individualFileForBlockHeight(blockHeight), blockHeight);
+        }
+        // Balance-list checkpoints rebuild the list without extracting the consolidated file.
+        if (balanceList == null && BalanceListCheckpoints.isEnabled()) {
+            balanceList = BalanceListCheckpoints.balanceListForHeight(blockHeight);
+        }
         if (balanceList == null) {
             extractConsolidatedFile(consolidatedFileForBlockHeight(blockHeight));
 
@@ -1,71 +1,137 @@
 package co.nyzo.verifier;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 public class BlockManagerMap {
 
-    private static int iteration = 0;
-    private static Map<Long, Block> blockMap = new HashMap<>();
+    // The blocks retained in memory, from the retention edge to the frozen edge, form a contiguous range of heights.
+    // They are stored in a ring buffer indexed by height modulo the capacity. Readers do not lock: a read is a single
+    // array load and a check that the block in the slot is the block for the requested height. Writers are
+    // serialized, and each write is O(1). A block is evicted when its slot is reused by a higher block or when the
+    // retention edge passes it. The Genesis block is held separately and is never evicted.
 
-    public static synchronized void addBlock(Block block) {
+    private static final int initialCapacity = 1 << 14;
+    private static final int maximumCapacity = 1 << 20;
 
-        if (block != null) {
-            // Add the block to the map.
-            blockMap.put(block.getBlockHeight(), block);
+    private static volatile AtomicReferenceArray<Block> slots = new AtomicReferenceArray<>(initialCapacity);
+    private static volatile Block genesisBlock = null;
+    private static long highestHeight = -1L;
+    private static long evictedThroughHeight = 0L;
 
-            // Periodically remove old blocks.
-            if (iteration++ >= 10 && BlockManager.isInitialized()) {
+    private static final LongAdder hitCount = new LongAdder();
+    private static final LongAdder missCount = new LongAdder();
 
-                iteration = 0;
+    public static synchronized void addBlock(Block block) {
 
-                Block frozenEdge = blockMap.get(BlockManager.getFrozenEdgeHeight());
+        if (block != null) {
+            long height = block.getBlockHeight();
+            if (height == 0L) {
+                genesisBlock = block;
+            } else {
+                highestHeight = Math.max(highestHeight, height);
+                long retentionEdgeHeight = BlockManager.isInitialized() ? BlockManager.getRetentionEdgeHeight() : -1L;
+                ensureCapacity(retentionEdgeHeight);
 
-                // The actual retention edge, for the purposes of balance lists, is the lowest block, greater than or
-                // equal to the desired retention height, that forms an unbroken chain to the frozen edge.
-                long retentionEdgeHeight = BlockManager.getRetentionEdgeHeight();
-                Block retentionEdge = frozenEdge;
-                while (blockMap.containsKey(retentionEdge.getBlockHeight() - 1) && retentionEdge.getBlockHeight() >
-                        retentionEdgeHeight) {
-                    retentionEdge = blockMap.get(retentionEdge.getBlockHeight() - 1);
+                // A block does not replace a higher block that is still at or above the retention edge.
+                AtomicReferenceArray<Block> slots = BlockManagerMap.slots;
+                int slot = slotForHeight(slots, height);
+                Block occupant = slots.get(slot);
+                if (occupant == null || occupant.getBlockHeight() <= height ||
+                        occupant.getBlockHeight() < retentionEdgeHeight) {
+                    slots.set(slot, block);
                 }
 
-                for (Long height : new HashSet<>(blockMap.keySet())) {
-                    if (height != 0 && height < retentionEdgeHeight) {
-                        blockMap.remove(height);
+                // Evict blocks that have fallen behind the retention edge. Each height is evicted only once, so the
+                // cost is constant per frozen block.
+                if (retentionEdgeHeight > 0L) {
+                    long startHeight = Math.max(evictedThroughHeight + 1L, retentionEdgeHeight - slots.length());
+                    for (long evictionHeight = startHeight; evictionHeight < retentionEdgeHeight; evictionHeight++) {
+                        int evictionSlot = slotForHeight(slots, evictionHeight);
+                        Block evictionOccupant = slots.get(evictionSlot);
+                        if (evictionOccupant != null && evictionOccupant.getBlockHeight() == evictionHeight) {
+                            slots.set(evictionSlot, null);
+                        }
                     }
+                    evictedThroughHeight = Math.max(evictedThroughHeight, retentionEdgeHeight - 1L);
                 }
             }
         }
     }
 
+    private static void ensureCapacity(long retentionEdgeHeight) {
+
+        // The buffer must be large enough to hold the full range from the retention edge to the highest block. If it
+        // is not, it is replaced with a larger buffer holding the same blocks. This is rare: the range only grows when
+        // the cycle grows.
+        AtomicReferenceArray<Block> slots = BlockManagerMap.slots;
+        long requiredCapacity = retentionEdgeHeight < 0L ? 0L : highestHeight - retentionEdgeHeight + 1L;
+        if (requiredCapacity > slots.length() && slots.length() < maximumCapacity) {
+            int capacity = slots.length();
+            while (capacity < requiredCapacity && capacity < maximumCapacity) {
+                capacity *= 2;
+            }
+
+            AtomicReferenceArray<Block> newSlots = new AtomicReferenceArray<>(capacity);
+            for (int i = 0; i < slots.length(); i++) {
+                Block block = slots.get(i);
+                if (block != null) {
+                    newSlots.set(slotForHeight(newSlots, block.getBlockHeight()), block);
+                }
+            }
+            BlockManagerMap.slots = newSlots;
+        }
+    }
+
+    private static int slotForHeight(AtomicReferenceArray<Block> slots, long height) {
+
+        // The capacity is always a power of two.
+        return (int) (height & (slots.length() - 1));
+    }
+
     public static Block blockForHeight(long blockHeight) {
 
-        return blockMap.get(blockHeight);
+        Block block;
+        if (blockHeight == 0L) {
+            block = genesisBlock;
+        } else {
+            AtomicReferenceArray<Block> slots = BlockManagerMap.slots;
+            block = blockHeight < 0L ? null : slots.get(slotForHeight(slots, blockHeight));
+            if (block != null && block.getBlockHeight() != blockHeight) {
+                block = null;
+            }
+        }
+
+        if (block == null) {
+            missCount.increment();
+        } else {
+            hitCount.increment();
+        }
+
+        return block;
     }
 
-    // TODO: remove this; it is for debugging only
-    public static synchronized String mapInformation() {
+    public static String mapInformation() {
 
+        // This reports the number of blocks held, the Genesis block, the range of heights held, the capacity of the
+        // ring buffer, and the hit and miss counts of reads. It scans the buffer, so it is only for status reporting.
+        AtomicReferenceArray<Block> slots = BlockManagerMap.slots;
+        int numberOfBlocks = 0;
         long minimumHeightInMap = -1L;
         long maximumHeightInMap = -1L;
-        boolean hasGenesisBlock = false;
-        for (Block block : blockMap.values()) {
-            if (block.getBlockHeight() == 0L) {
-                hasGenesisBlock = true;
-            } else {
-                if (minimumHeightInMap < 0) {
-                    minimumHeightInMap = block.getBlockHeight();
-                    maximumHeightInMap = block.getBlockHeight();
-                } else {
-                    minimumHeightInMap = Math.min(minimumHeightInMap, block.getBlockHeight());
-                    maximumHeightInMap = Math.max(maximumHeightInMap, block.getBlockHeight());
-                }
+        for (int i = 0; i < slots.length(); i++) {
+            Block block = slots.get(i);
+            if (block != null) {
+                numberOfBlocks++;
+                long height = block.getBlockHeight();
+                minimumHeightInMap = minimumHeightInMap < 0 ? height : Math.min(minimumHeightInMap, height);
+                maximumHeightInMap = Math.max(maximumHeightInMap, height);
             }
         }
+        boolean hasGenesisBlock = genesisBlock != null;
 
-        return blockMap.size() + ": " + (hasGenesisBlock ? "0," : "") +
-                (minimumHeightInMap < 0 ? "" : "[" + minimumHeightInMap + "," + maximumHeightInMap + "]");
+        return (numberOfBlocks + (hasGenesisBlock ? 1 : 0)) + ": " + (hasGenesisBlock ? "0," : "") +
+                (minimumHeightInMap < 0 ? "" : "[" + minimumHeightInMap + "," + maximumHeightInMap + "]") +
+                ", capacity " + slots.length() + ", hit/miss " + hitCount.sum() + "/" + missCount.sum();
     }
 }
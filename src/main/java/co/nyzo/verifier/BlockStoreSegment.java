@@ -0,0 +1,175 @@
+package co.nyzo.verifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+class BlockStoreSegment {
+
+    // A segment holds the blocks for a fixed range of heights in two files. The data file is append-only: each record
+    // is a header (height, block length, balance-list length) followed by the block and, optionally, its balance list.
+    // The index file is a dense array of one 64-bit data offset per height in the range, -1 for absent heights, and it
+    // is memory-mapped, so finding a block is a single array read and reading it is a single positional read. The
+    // index entry is written only after the record is complete, so an interrupted append leaves no index entry.
+
+    static final int headerSize = FieldByteSize.blockHeight + FieldByteSize.unnamedInteger * 2;
+
+    private final long startHeight;
+    private final int numberOfHeights;
+    private final FileChannel dataChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private long dataSize;
+
+    BlockStoreSegment(File dataFile, File indexFile, long startHeight, int numberOfHeights) throws IOException {
+
+        this.startHeight = startHeight;
+        this.numberOfHeights = numberOfHeights;
+
+        boolean newIndex = !indexFile.exists() || indexFile.length() != numberOfHeights * 8L;
+        dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, numberOfHeights * 8L);
+        dataSize = dataChannel.size();
+
+        // Clear a new index, and discard any index entries that point past the end of the data, which can only result
+        // from an interrupted write.
+        for (int i = 0; i < numberOfHeights; i++) {
+            if (newIndex || index.getLong(i * 8) + headerSize > dataSize) {
+                index.putLong(i * 8, -1L);
+            }
+        }
+    }
+
+    long getStartHeight() {
+        return startHeight;
+    }
+
+    boolean contains(long height) {
+        return offsetForHeight(height) >= 0L;
+    }
+
+    long highestHeight() {
+
+        long height = -1L;
+        for (int i = numberOfHeights - 1; i >= 0 && height < 0; i--) {
+            if (index.getLong(i * 8) >= 0L) {
+                height = startHeight + i;
+            }
+        }
+
+        return height;
+    }
+
+    private long offsetForHeight(long height) {
+
+        long offset = -1L;
+        if (height >= startHeight && height < startHeight + numberOfHeights) {
+            offset = index.getLong((int) (height - startHeight) * 8);
+        }
+
+        return offset;
+    }
+
+    synchronized void append(long height, byte[] blockBytes, byte[] balanceListBytes) throws IOException {
+
+        int balanceListLength = balanceListBytes == null ? 0 : balanceListBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(headerSize + blockBytes.length + balanceListLength);
+        record.putLong(height);
+        record.putInt(blockBytes.length);
+        record.putInt(balanceListLength);
+        record.put(blockBytes);
+        if (balanceListBytes != null) {
+            record.put(balanceListBytes);
+        }
+        record.flip();
+
+        long offset = dataSize;
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += dataChannel.write(record, position);
+        }
+        dataSize = position;
+
+        index.putLong((int) (height - startHeight) * 8, offset);
+    }
+
+    ByteBuffer[] read(long height, boolean includeBalanceList) throws IOException {
+
+        // This returns the block bytes and, if requested and present, the balance-list bytes. A null result indicates
+        // that the height is not in the segment; a null balance list indicates that no list is stored for the height.
+        ByteBuffer[] result = null;
+        long offset = offsetForHeight(height);
+        if (offset >= 0L) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            readFully(header, offset);
+            header.flip();
+            long recordHeight = header.getLong();
+            int blockLength = header.getInt();
+            int balanceListLength = header.getInt();
+
+            if (recordHeight == height) {
+                ByteBuffer block = ByteBuffer.allocate(blockLength);
+                readFully(block, offset + headerSize);
+                block.flip();
+
+                ByteBuffer balanceList = null;
+                if (includeBalanceList && balanceListLength > 0) {
+                    balanceList = ByteBuffer.allocate(balanceListLength);
+                    readFully(balanceList, offset + headerSize + blockLength);
+                    balanceList.flip();
+                }
+
+                result = new ByteBuffer[] { block, balanceList };
+            }
+        }
+
+        return result;
+    }
+
+    boolean hasBalanceList(long height) throws IOException {
+
+        boolean hasBalanceList = false;
+        long offset = offsetForHeight(height);
+        if (offset >= 0L) {
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            readFully(header, offset);
+            hasBalanceList = header.getLong(0) == height && header.getInt(headerSize - 4) > 0;
+        }
+
+        return hasBalanceList;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+        // Positional reads do not change the position of the channel, so concurrent readers do not interfere.
+        while (buffer.hasRemaining()) {
+            int bytesRead = dataChannel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new IOException("unexpected end of block store segment");
+            }
+            position += bytesRead;
+        }
+    }
+
+    synchronized void force() throws IOException {
+
+        dataChannel.force(false);
+        index.force();
+    }
+
+    synchronized void close() {
+
+        try {
+            dataChannel.close();
+        } catch (Exception ignored) { }
+        try {
+            indexChannel.close();
+        } catch (Exception ignored) { }
+    }
+}
@@ -0,0 +1,68 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+class BroadcastDelivery {
+
+    // This is the delivery of one broadcast message to one peer over TCP by BroadcastFanOut. The buffer is a
+    // duplicate of the broadcast's shared read-only buffer, so each delivery has its own position but no copy of the
+    // message. The delivery is complete when the message has been written or the delivery has failed; the connection
+    // is then kept open only to read and discard the peer's response.
+
+    private final BroadcastProgress progress;
+    private final String hostNameOrIp;
+    private final int port;
+    private final ByteBuffer buffer;
+    private SocketChannel channel = null;
+    private long deadline;
+    private boolean complete = false;
+
+    BroadcastDelivery(BroadcastProgress progress, String hostNameOrIp, int port, ByteBuffer sharedBuffer) {
+        this.progress = progress;
+        this.hostNameOrIp = hostNameOrIp;
+        this.port = port;
+        this.buffer = sharedBuffer.duplicate();
+    }
+
+    String getHostNameOrIp() {
+        return hostNameOrIp;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setChannel(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    void complete(boolean delivered) {
+
+        // Only the first completion of a delivery is recorded.
+        if (!complete) {
+            complete = true;
+            progress.peerComplete(delivered);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.IpUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BroadcastFanOut {
+
+    // This sends a broadcast message to all of its peers with one serialization of the message. The message is
+    // serialized into a read-only direct buffer that is shared by all deliveries. Messages sent by UDP are sent to
+    // all UDP peers from the calling thread, in one pass. Messages sent by TCP are handed to a single fan-out thread,
+    // which opens non-blocking connections to all TCP peers at once and writes the shared buffer to each connection
+    // as it becomes writable. No thread is started for each peer, and the broadcast does not wait for any peer.
+    //
+    // As with Message.fetch(), a connection that cannot be opened within 2 seconds marks the peer as failed, and the
+    // response of each peer is read for up to 1 second before the connection is closed. Persistent peer connections
+    // are not used for broadcasts, as writing to them may block.
+    //
+    // The latency of each peer and the total time of each broadcast are tracked by BroadcastProgress. The summary of
+    // the most recent broadcast and percentiles of the total time of recent broadcasts are reported in the status
+    // response.
+    //
+    // The fan-out is enabled with the broadcast_fan_out preference.
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("broadcast_fan_out", false);
+    private static final long connectTimeout = 2000L;
+    private static final long writeTimeout = 2000L;
+    private static final long responseTimeout = 1000L;
+    private static final int numberOfTotalLatencies = 100;
+
+    private static final Queue<BroadcastDelivery> pendingDeliveries = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean threadStarted = new AtomicBoolean(false);
+    private static volatile Selector selector = null;
+
+    private static volatile String lastBroadcastSummary = "";
+    private static final long[] totalLatencies = new long[numberOfTotalLatencies];
+    private static int totalLatencyCount = 0;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void broadcast(Message message, List<Node> nodes) {
+
+        byte[] messageBytes = message.getBytesForTransmission();
+
+        // The shared buffer is direct, so writes to the channels do not copy it to temporary direct buffers.
+        ByteBuffer directBuffer = ByteBuffer.allocateDirect(messageBytes.length);
+        directBuffer.put(messageBytes);
+        directBuffer.flip();
+        ByteBuffer sharedBuffer = directBuffer.asReadOnlyBuffer();
+        BroadcastProgress progress = new BroadcastProgress(message.getType(), nodes.size());
+
+        boolean tcpSendAllowed = Message.tcpSendAllowed(message);
+        List<BroadcastDelivery> tcpDeliveries = new ArrayList<>();
+        for (Node node : nodes) {
+            if (Message.isUdpType(message.getType()) && node.getPortUdp() > 0) {
+                Message.sendUdp(node.getIpAddress(), node.getPortUdp(), message, messageBytes);
+                progress.peerComplete(true);
+            } else if (tcpSendAllowed) {
+                tcpDeliveries.add(new BroadcastDelivery(progress, IpUtil.addressAsString(node.getIpAddress()),
+                        node.getPortTcp(), sharedBuffer));
+            } else {
+                progress.peerComplete(false);
+            }
+        }
+
+        if (!tcpDeliveries.isEmpty()) {
+            startThread();
+            pendingDeliveries.addAll(tcpDeliveries);
+            Selector currentSelector = selector;
+            if (currentSelector != null) {
+                currentSelector.wakeup();
+            }
+        }
+    }
+
+    private static void startThread() {
+
+        if (!threadStarted.getAndSet(true)) {
+            try {
+                selector = Selector.open();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runFanOut();
+                    }
+                }, "BroadcastFanOut").start();
+            } catch (Exception e) {
+                System.out.println("unable to start broadcast fan-out: " + PrintUtil.printException(e));
+            }
+        }
+    }
+
+    private static void runFanOut() {
+
+        ByteBuffer discardBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        Set<BroadcastDelivery> activeDeliveries = new HashSet<>();
+        while (!UpdateUtil.shouldTerminate()) {
+            try {
+                selector.select(100L);
+
+                // Start connections for new deliveries.
+                BroadcastDelivery delivery;
+                while ((delivery = pendingDeliveries.poll()) != null) {
+                    startDelivery(delivery);
+                    activeDeliveries.add(delivery);
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    delivery = (BroadcastDelivery) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            if (delivery.getChannel().finishConnect()) {
+                                NodeManager.markSuccessfulConnection(delivery.getHostNameOrIp());
+                                delivery.setDeadline(System.currentTimeMillis() + writeTimeout);
+                                key.interestOps(SelectionKey.OP_WRITE);
+                            }
+                        } else if (key.isValid() && key.isWritable()) {
+                            delivery.getChannel().write(delivery.getBuffer());
+                            if (!delivery.getBuffer().hasRemaining()) {
+                                delivery.complete(true);
+                                delivery.setDeadline(System.currentTimeMillis() + responseTimeout);
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                        } else if (key.isValid() && key.isReadable()) {
+                            discardBuffer.clear();
+                            if (delivery.getChannel().read(discardBuffer) < 0) {
+                                endDelivery(delivery, activeDeliveries);
+                            }
+                        }
+                    } catch (Exception e) {
+                        endDelivery(delivery, activeDeliveries);
+                    }
+                }
+
+                // End deliveries that have not connected or written their messages within their timeouts, and
+                // connections that have not been closed by their peers within the response timeout.
+                long now = System.currentTimeMillis();
+                for (BroadcastDelivery activeDelivery : new ArrayList<>(activeDeliveries)) {
+                    if (activeDelivery.getDeadline() < now) {
+                        endDelivery(activeDelivery, activeDeliveries);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("exception in broadcast fan-out: " + PrintUtil.printException(e));
+            }
+        }
+    }
+
+    private static void startDelivery(BroadcastDelivery delivery) {
+
+        delivery.setDeadline(System.currentTimeMillis() + connectTimeout);
+        try {
+            SocketChannel channel = SocketChannel.open();
+            delivery.setChannel(channel);
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(delivery.getHostNameOrIp(), delivery.getPort()))) {
+                NodeManager.markSuccessfulConnection(delivery.getHostNameOrIp());
+                channel.register(selector, SelectionKey.OP_WRITE, delivery);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, delivery);
+            }
+        } catch (Exception e) {
+            // The deadline is reached immediately, so the delivery is ended in the next pass.
+            delivery.setDeadline(0L);
+        }
+    }
+
+    private static void endDelivery(BroadcastDelivery delivery, Set<BroadcastDelivery> activeDeliveries) {
+
+        // A delivery that ends before its message is written has failed. If the connection was never established,
+        // the peer is marked as failed.
+        SocketChannel channel = delivery.getChannel();
+        if (!delivery.isComplete()) {
+            if (channel == null || !channel.isConnected()) {
+                NodeManager.markFailedConnection(delivery.getHostNameOrIp());
+            }
+            delivery.complete(false);
+        }
+
+        if (channel != null) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null) {
+                key.cancel();
+            }
+            ConnectionManager.fastCloseSocket(channel.socket());
+        }
+
+        activeDeliveries.remove(delivery);
+    }
+
+    static synchronized void broadcastComplete(String summary, long totalLatency) {
+
+        System.out.println("broadcast complete: " + summary);
+        lastBroadcastSummary = summary;
+        totalLatencies[totalLatencyCount % numberOfTotalLatencies] = totalLatency;
+        totalLatencyCount++;
+    }
+
+    public static synchronized String fanOutInformation() {
+
+        long[] sortedLatencies = Arrays.copyOf(totalLatencies, Math.min(totalLatencyCount, numberOfTotalLatencies));
+        Arrays.sort(sortedLatencies);
+
+        return String.format("total (ms) p50 %.1f, p90 %.1f, p99 %.1f over %d; last: %s",
+                BroadcastProgress.percentile(sortedLatencies, 0.50),
+                BroadcastProgress.percentile(sortedLatencies, 0.90),
+                BroadcastProgress.percentile(sortedLatencies, 0.99), sortedLatencies.length, lastBroadcastSummary);
+    }
+}
@@ -0,0 +1,60 @@
+package co.nyzo.verifier;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class BroadcastProgress {
+
+    // This tracks the completion of one broadcast across its peers. The latency of each peer is the time from the
+    // start of the broadcast until the message was written to that peer. When the last peer completes, the latencies
+    // are summarized and passed to BroadcastFanOut.
+
+    private final MessageType messageType;
+    private final long startTimestamp;
+    private final int numberOfPeers;
+    private final long[] latencies;
+    private final AtomicInteger numberDelivered = new AtomicInteger(0);
+    private final AtomicInteger numberRemaining;
+
+    BroadcastProgress(MessageType messageType, int numberOfPeers) {
+        this.messageType = messageType;
+        this.startTimestamp = System.nanoTime();
+        this.numberOfPeers = numberOfPeers;
+        this.latencies = new long[numberOfPeers];
+        this.numberRemaining = new AtomicInteger(numberOfPeers);
+    }
+
+    void peerComplete(boolean delivered) {
+
+        if (delivered) {
+            int index = numberDelivered.getAndIncrement();
+            if (index < latencies.length) {
+                latencies[index] = System.nanoTime() - startTimestamp;
+            }
+        }
+
+        if (numberRemaining.decrementAndGet() == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+
+        // The final decrement of the remaining count happens after all latencies are stored.
+        long totalLatency = System.nanoTime() - startTimestamp;
+        int delivered = Math.min(numberDelivered.get(), latencies.length);
+        long[] sortedLatencies = Arrays.copyOf(latencies, delivered);
+        Arrays.sort(sortedLatencies);
+
+        String summary = String.format("%s to %d: %d delivered, peer latency (ms) p50 %.1f, p90 %.1f, p99 %.1f, " +
+                        "total %.1f", messageType, numberOfPeers, delivered, percentile(sortedLatencies, 0.50),
+                percentile(sortedLatencies, 0.90), percentile(sortedLatencies, 0.99), totalLatency / 1000000.0);
+        BroadcastFanOut.broadcastComplete(summary, totalLatency);
+    }
+
+    static double percentile(long[] sortedNanoseconds, double fraction) {
+
+        int index = (int) Math.min(sortedNanoseconds.length - 1, Math.floor(sortedNanoseconds.length * fraction));
+        return sortedNanoseconds.length == 0 ? 0.0 : sortedNanoseconds[index] / 1000000.0;
+    }
+}
@@ -0,0 +1,190 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ChainManifest {
+
+    // The manifest is a small file that records where the locally stored chain ends. It is rewritten atomically after
+    // a frozen block is written to disk, so it never names a block that is not on disk. To keep this rewrite off the
+    // path of each frozen block, it is only done when the written height has advanced by the chain_manifest_interval
+    // preference since the last rewrite; the blocks written since then are found on startup by the forward probe. On
+    // startup, the frozen edge is loaded directly from the height in the manifest instead of listing and sorting
+    // every individual block file. The last line is a checksum of the others; a manifest that is missing, incomplete,
+    // or written for a different storage layout is ignored, and initialization falls back to scanning the block
+    // files.
+
+    public static final File file = new File(BlockManager.blockRootDirectory, "chain_manifest");
+
+    private static final String storageIndividual = "individual";
+    private static final String storageSegmented = "segmented";
+
+    // Blocks written after the manifest, as may happen if the verifier stops between writing a block and writing the
+    // manifest, are found by checking the heights that follow the manifest height, up to this limit.
+    private static final long maximumForwardProbe = 1000L;
+
+    // The interval is kept well inside the forward probe, so blocks written after the last rewrite are always found.
+    private static final long updateInterval = Math.max(1L, Math.min(maximumForwardProbe / 2L,
+            PreferencesUtil.getLong("chain_manifest_interval", 100L)));
+    private static final AtomicLong lastUpdateHeight = new AtomicLong(-1L);
+
+    private long frozenEdgeHeight;
+    private byte[] frozenEdgeHash;
+    private long trailingEdgeHeight;
+    private long retentionEdgeHeight;
+    private long balanceListHeight;
+    private long checkpointHeight;
+    private String storage;
+    private long blocksPerFile;
+
+    private ChainManifest(long frozenEdgeHeight, byte[] frozenEdgeHash, long trailingEdgeHeight,
+                          long retentionEdgeHeight, long balanceListHeight, long checkpointHeight, String storage,
+                          long blocksPerFile) {
+
+        this.frozenEdgeHeight = frozenEdgeHeight;
+        this.frozenEdgeHash = frozenEdgeHash;
+        this.trailingEdgeHeight = trailingEdgeHeight;
+        this.retentionEdgeHeight = retentionEdgeHeight;
+        this.balanceListHeight = balanceListHeight;
+        this.checkpointHeight = checkpointHeight;
+        this.storage = storage;
+        this.blocksPerFile = blocksPerFile;
+    }
+
+    public long getFrozenEdgeHeight() {
+        return frozenEdgeHeight;
+    }
+
+    public byte[] getFrozenEdgeHash() {
+        return frozenEdgeHash;
+    }
+
+    public long getTrailingEdgeHeight() {
+        return trailingEdgeHeight;
+    }
+
+    public long getRetentionEdgeHeight() {
+        return retentionEdgeHeight;
+    }
+
+    public long getBalanceListHeight() {
+        return balanceListHeight;
+    }
+
+    public long getCheckpointHeight() {
+        return checkpointHeight;
+    }
+
+    private static String currentStorage() {
+        return SegmentedBlockStore.isEnabled() ? storageSegmented : storageIndividual;
+    }
+
+    public static void blockWritten(Block block) {
+
+        // The manifest is also rewritten if the height is lower than the last rewrite, as when the chain is reloaded
+        // from a lower height.
+        long height = block.getBlockHeight();
+        long lastHeight = lastUpdateHeight.get();
+        if ((height >= lastHeight + updateInterval || height < lastHeight) &&
+                lastUpdateHeight.compareAndSet(lastHeight, height)) {
+            update(block);
+        }
+    }
+
+    public static void update(Block block) {
+
+        // The edges are read without the BlockManager lock, which the asynchronous writer must not wait for. Each
+        // block is stored with its balance list in individual files, and the segmented store derives the balance
+        // list for any stored height, so the balance list for the frozen edge is at the height of the block. The
+        // highest balance-list checkpoint written is also recorded.
+        List<String> lines = new ArrayList<>();
+        lines.add("frozen_edge_height=" + block.getBlockHeight());
+        lines.add("frozen_edge_hash=" + ByteUtil.arrayAsStringNoDashes(block.getHash()));
+        lines.add("trailing_edge_height=" + BlockManager.getTrailingEdgeHeight());
+        lines.add("retention_edge_height=" + BlockManager.getRetentionEdgeHeight());
+        lines.add("balance_list_height=" + block.getBlockHeight());
+        lines.add("checkpoint_height=" + BalanceListCheckpoints.getHighestCheckpointHeight());
+        lines.add("storage=" + currentStorage());
+        lines.add("blocks_per_file=" + BlockManager.blocksPerFile);
+        lines.add("checksum=" + checksum(lines));
+
+        FileUtil.writeFile(Paths.get(file.getAbsolutePath()), lines);
+        lastUpdateHeight.set(block.getBlockHeight());
+    }
+
+    public static ChainManifest load() {
+
+        ChainManifest manifest = null;
+        try {
+            if (file.exists()) {
+                List<String> lines = Files.readAllLines(Paths.get(file.getAbsolutePath()));
+                Map<String, String> values = new HashMap<>();
+                for (String line : lines) {
+                    int splitIndex = line.indexOf('=');
+                    if (splitIndex > 0) {
+                        values.put(line.substring(0, splitIndex), line.substring(splitIndex + 1));
+                    }
+                }
+
+                String checksum = lines.isEmpty() ? "" : lines.get(lines.size() - 1);
+                List<String> contentLines = lines.isEmpty() ? lines : lines.subList(0, lines.size() - 1);
+                if (checksum.equals("checksum=" + checksum(contentLines)) &&
+                        currentStorage().equals(values.get("storage")) &&
+                        Long.parseLong(values.get("blocks_per_file")) == BlockManager.blocksPerFile) {
+                    manifest = new ChainManifest(Long.parseLong(values.get("frozen_edge_height")),
+                            ByteUtil.byteArrayFromHexString(values.get("frozen_edge_hash"), FieldByteSize.hash),
+                            Long.parseLong(values.get("trailing_edge_height")),
+                            Long.parseLong(values.get("retention_edge_height")),
+                            Long.parseLong(values.get("balance_list_height")),
+                            Long.parseLong(values.getOrDefault("checkpoint_height", "-1")), values.get("storage"),
+                            Long.parseLong(values.get("blocks_per_file")));
+                } else {
+                    System.out.println("chain manifest is not valid for this configuration; ignoring");
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("unable to read chain manifest: " + PrintUtil.printException(e));
+            manifest = null;
+        }
+
+        return manifest;
+    }
+
+    public long highestStoredHeight() {
+
+        // Step forward past the manifest height while the next block is on disk. This is a single existence check per
+        // height, and it normally stops at the first height checked.
+        long height = frozenEdgeHeight;
+        boolean foundNext = true;
+        while (foundNext && height < frozenEdgeHeight + maximumForwardProbe) {
+            foundNext = storage.equals(storageSegmented) ? SegmentedBlockStore.contains(height + 1L) :
+                    BlockManager.individualFileForBlockHeight(height + 1L).exists();
+            if (foundNext) {
+                height++;
+            }
+        }
+
+        return height;
+    }
+
+    private static String checksum(List<String> lines) {
+
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(line).append('\n');
+        }
+
+        return String.format("%016x", HashUtil.longSHA256(content.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,208 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ChainReplay {
+
+    // This re-verifies the locally stored chain by replaying it: every block is checked for continuity with the
+    // previous block and for a valid signature, and every balance list is derived from the previous list and checked
+    // against the balance-list hash of its block. The work is split into a pipeline. Ranges of blocks are read,
+    // decoded, and signature-checked (block and transaction signatures) in parallel on a pool of threads, several
+    // ranges ahead of the replay. Balance lists are then derived strictly in height order on the calling thread, and
+    // they use the signature results already stored in the blocks.
+    //
+    // The replay starts at the Genesis block or, when started at a higher height, from the nearest balance-list
+    // checkpoint. If checkpoints are enabled, the replay writes them as it goes, so an interrupted replay can be
+    // resumed from the last one.
+    //
+    // Usage: ChainReplay [start height | resume] [end height] [thread count]
+
+    private static final long rangeSize = BlockManager.blocksPerFile;
+    private static final long progressIntervalMilliseconds = 10000L;
+
+    public static void main(String[] args) {
+
+        long endHeight = BlockManager.getFrozenEdgeHeight();
+        long startHeight = 0L;
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        try {
+            if (args.length > 1) {
+                endHeight = Math.min(endHeight, Long.parseLong(args[1]));
+            }
+            if (args.length > 0) {
+                startHeight = args[0].equals("resume") ?
+                        Math.max(0L, Math.min(BalanceListCheckpoints.getHighestCheckpointHeight(), endHeight)) :
+                        Long.parseLong(args[0]);
+            }
+            if (args.length > 2) {
+                threadCount = Math.max(1, Integer.parseInt(args[2]));
+            }
+        } catch (Exception e) {
+            System.out.println("usage: ChainReplay [start height | resume] [end height] [thread count]");
+            startHeight = -1L;
+        }
+
+        if (startHeight >= 0L) {
+            boolean successful = replay(startHeight, endHeight, threadCount);
+            System.out.println("chain replay " + (successful ? "succeeded" : "failed"));
+        }
+
+        UpdateUtil.terminate();
+    }
+
+    public static boolean replay(long startHeight, long endHeight, int threadCount) {
+
+        boolean successful = true;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private int threadIndex = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChainReplay-" + threadIndex++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            // Establish the starting block and balance list. The Genesis list is derived from the Genesis block;
+            // other lists are rebuilt from the nearest checkpoint.
+            Block previousBlock = HistoricalBlockService.blockForHeight(startHeight);
+            BalanceList previousBalanceList = null;
+            if (previousBlock == null) {
+                System.out.println("unable to load block " + startHeight + " to start replay");
+            } else if (startHeight == 0L) {
+                previousBalanceList = Block.balanceListForNextBlock(null, null, previousBlock.getTransactions(),
+                        previousBlock.getVerifierIdentifier(), previousBlock.getBlockchainVersion());
+                if (previousBalanceList != null && (!previousBlock.signatureIsValid() ||
+                        !ByteUtil.arraysAreEqual(previousBalanceList.getHash(),
+                                previousBlock.getBalanceListHash()))) {
+                    previousBalanceList = null;
+                }
+            } else {
+                previousBalanceList = BalanceListCheckpoints.balanceListForHeight(startHeight);
+            }
+
+            if (previousBalanceList == null) {
+                System.out.println("unable to establish balance list at height " + startHeight + " to start replay");
+                successful = false;
+            } else {
+                System.out.println("replaying " + (endHeight - startHeight) + " blocks from height " + startHeight +
+                        " to " + endHeight + " on " + threadCount + " threads");
+            }
+
+            // Keep several ranges in progress ahead of the sequential stage.
+            long startTimestamp = System.currentTimeMillis();
+            long progressTimestamp = startTimestamp;
+            long blocksReplayed = 0L;
+            int maximumRangesInProgress = threadCount * 2;
+            Deque<Future<List<Block>>> rangesInProgress = new ArrayDeque<>();
+            long nextRangeStart = startHeight + 1L;
+            while (successful && (nextRangeStart <= endHeight || !rangesInProgress.isEmpty())) {
+
+                while (nextRangeStart <= endHeight && rangesInProgress.size() < maximumRangesInProgress) {
+                    long rangeStart = nextRangeStart;
+                    long rangeEnd = Math.min(endHeight, rangeStart - rangeStart % rangeSize + rangeSize - 1L);
+                    rangesInProgress.add(executor.submit(new Callable<List<Block>>() {
+                        @Override
+                        public List<Block> call() {
+                            return loadAndCheckRange(rangeStart, rangeEnd);
+                        }
+                    }));
+                    nextRangeStart = rangeEnd + 1L;
+                }
+
+                List<Block> blocks = rangesInProgress.removeFirst().get();
+                for (int i = 0; i < blocks.size() && successful; i++) {
+                    Block block = blocks.get(i);
+                    long expectedHeight = previousBlock.getBlockHeight() + 1L;
+                    if (block == null) {
+                        System.out.println("block " + expectedHeight + " is missing");
+                        successful = false;
+                    } else if (!ByteUtil.arraysAreEqual(block.getPreviousBlockHash(), previousBlock.getHash())) {
+                        System.out.println("block " + expectedHeight + " does not follow the previous block");
+                        successful = false;
+                    } else if (!block.signaturesAreValid()) {
+                        System.out.println("block " + expectedHeight + " has an invalid signature");
+                        successful = false;
+                    } else {
+                        BalanceList balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList,
+                                block.getTransactions(), block.getVerifierIdentifier(),
+                                block.getBlockchainVersion());
+                        if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                                block.getBalanceListHash())) {
+                            System.out.println("balance list for block " + expectedHeight + " does not match");
+                            successful = false;
+                        } else {
+                            if (BalanceListCheckpoints.isEnabled() &&
+                                    BalanceListCheckpoints.isCheckpointHeight(expectedHeight)) {
+                                BalanceListCheckpoints.writeCheckpoint(balanceList);
+                            }
+
+                            previousBlock = block;
+                            previousBalanceList = balanceList;
+                            blocksReplayed++;
+                        }
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - progressTimestamp >= progressIntervalMilliseconds) {
+                    progressTimestamp = now;
+                    System.out.println(String.format("replayed through height %d: %.1f blocks/second",
+                            previousBlock.getBlockHeight(), blocksPerSecond(blocksReplayed, now - startTimestamp)));
+                }
+            }
+
+            long elapsed = System.currentTimeMillis() - startTimestamp;
+            System.out.println(String.format("replayed %d blocks in %.1f seconds: %.1f blocks/second", blocksReplayed,
+                    elapsed / 1000.0, blocksPerSecond(blocksReplayed, elapsed)));
+        } catch (Exception e) {
+            System.out.println("exception in chain replay: " + PrintUtil.printException(e));
+            successful = false;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return successful;
+    }
+
+    private static List<Block> loadAndCheckRange(long startHeight, long endHeight) {
+
+        // A range never spans more than one consolidated file. If the file exists, it is read once for the whole
+        // range, and any heights it does not contain are read individually. A missing block is returned as null.
+        Map<Long, Block> fileBlocks = new HashMap<>();
+        File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(startHeight);
+        if (consolidatedFile.exists()) {
+            for (Block block : BlockManager.loadBlocksInFile(consolidatedFile, startHeight, endHeight)) {
+                fileBlocks.put(block.getBlockHeight(), block);
+            }
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        for (long height = startHeight; height <= endHeight; height++) {
+            Block block = fileBlocks.get(height);
+            if (block == null) {
+                block = HistoricalBlockService.blockForHeight(height);
+            }
+
+            // This decodes the transactions and verifies the block and transaction signatures, storing the results
+            // in the block and its transactions for the sequential stage.
+            if (block != null) {
+                block.signaturesAreValid();
+            }
+            blocks.add(block);
+        }
+
+        return blocks;
+    }
+
+    private static double blocksPerSecond(long blocks, long milliseconds) {
+        return blocks * 1000.0 / Math.max(1L, milliseconds);
+    }
+}
@@ -0,0 +1,42 @@
+package co.nyzo.verifier;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+class FetchDestination {
+
+    // This tracks the fetches to one destination for MessageFetchExecutor: the number running, and the fetches
+    // waiting for one of those to finish. It is only modified inside ConcurrentHashMap.compute(), which serializes
+    // access for each destination.
+
+    private int numberRunning = 0;
+    private final Queue<Runnable> waitingTasks = new ArrayDeque<>();
+
+    boolean start(Runnable task, int maximumRunning) {
+
+        boolean started = false;
+        if (numberRunning < maximumRunning) {
+            numberRunning++;
+            started = true;
+        } else {
+            waitingTasks.add(task);
+        }
+
+        return started;
+    }
+
+    Runnable finish() {
+
+        // The next waiting task, if there is one, takes the place of the finished task.
+        Runnable nextTask = waitingTasks.poll();
+        if (nextTask == null) {
+            numberRunning--;
+        }
+
+        return nextTask;
+    }
+
+    boolean isIdle() {
+        return numberRunning == 0 && waitingTasks.isEmpty();
+    }
+}
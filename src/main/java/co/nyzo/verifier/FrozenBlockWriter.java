@@ -0,0 +1,218 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.FileUtil;
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrozenBlockWriter {
+
+    // When enabled, frozen blocks are written to disk by a background thread instead of inside freezeBlock(). The
+    // frozen edge advances in memory immediately, and blocks wait in a queue. Space for each block is reserved by
+    // freezeBlock() before it takes the BlockManager lock, and the space is released when the block is written. If
+    // the writer is behind by the block_writer_queue_size preference, freezing waits for space outside the lock, and
+    // an alarm is logged while it waits. Memory use is therefore limited even if the disk falls behind or fails, and
+    // readers of the BlockManager lock never wait for the disk.
+    //
+    // The writer takes the queued blocks as one batch, writes them in order, and then, according to the sync_batch
+    // preference, forces them to storage with one sync pass for the whole batch. If a block cannot be written, the
+    // blocks after it are not attempted; the failed block and those after it are kept and retried, in order, on the
+    // next pass. The durable height is therefore always a height at and below which every block has been written. It
+    // is saved in persistent data, and initialization falls back to it if the highest block on disk cannot be loaded.
+    // After initialization, it is reset to the height that was actually loaded.
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("asynchronous_block_writer", false);
+    private static final int queueSize = Math.max(1, PreferencesUtil.getInt("block_writer_queue_size", 1000));
+    private static final int maximumBatchSize = Math.max(1,
+            PreferencesUtil.getInt("block_writer_maximum_batch_size", 100));
+    private static final boolean syncBatch = PreferencesUtil.getBoolean("block_writer_sync_batch", true);
+    private static final long retryInterval = 1000L;
+    private static final long alarmInterval = 10000L;
+
+    public static final String durableHeightKey = "durable_frozen_height";
+
+    // The queue is not bounded, because the space semaphore limits the number of blocks in the queue and the pending
+    // list together.
+    private static final Semaphore space = new Semaphore(queueSize);
+    private static final BlockingQueue<Map.Entry<Block, BalanceList>> queue = new LinkedBlockingQueue<>();
+    private static final AtomicBoolean alive = new AtomicBoolean(false);
+    private static final AtomicLong durableHeight = new AtomicLong(PersistentData.getLong(durableHeightKey, -1L));
+    private static final AtomicLong batchCount = new AtomicLong(0L);
+    private static final AtomicLong waitCount = new AtomicLong(0L);
+    private static final AtomicLong failedWriteCount = new AtomicLong(0L);
+
+    // The blocks taken from the queue and not yet written, in freezing order. This list is only accessed by the
+    // writer thread, and it never holds more than the maximum batch size.
+    private static final List<Map.Entry<Block, BalanceList>> pending = new ArrayList<>();
+    private static volatile int pendingSize = 0;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static long getDurableHeight() {
+        return durableHeight.get();
+    }
+
+    public static void resetDurableHeight(long height) {
+
+        // The saved durable height may be above the blocks on disk if the block directory was restored or truncated.
+        // Without this reset, the durable height and the chain manifest would not advance again until the frozen edge
+        // passed the saved height.
+        if (durableHeight.getAndSet(height) != height) {
+            PersistentData.put(durableHeightKey, height);
+        }
+    }
+
+    public static boolean reserveSpace() {
+
+        // This must be called without holding the BlockManager lock. It waits until the writer has room for another
+        // block. If this returns true, the space must be used by enqueue() or returned with releaseSpace().
+        start();
+        boolean reserved = false;
+        while (!reserved && (alive.get() || !UpdateUtil.shouldTerminate())) {
+            try {
+                reserved = space.tryAcquire(alarmInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) { }
+
+            if (!reserved) {
+                waitCount.incrementAndGet();
+                LogUtil.println("FrozenBlockWriter: writer is behind; freezing is waiting with " +
+                        (queue.size() + pendingSize) + " blocks above durable height " + durableHeight.get() +
+                        " not written");
+            }
+        }
+
+        return reserved;
+    }
+
+    public static void releaseSpace() {
+        space.release();
+    }
+
+    public static void enqueue(Block block, BalanceList balanceList) {
+
+        // This is called by freezeBlock() while holding the BlockManager lock, after space was reserved, so it never
+        // waits. Blocks are frozen one at a time, so all blocks in the queue and the pending list are lower than this
+        // block.
+        start();
+        queue.add(new AbstractMap.SimpleImmutableEntry<>(block, balanceList));
+    }
+
+    private static void start() {
+
+        if (!alive.getAndSet(true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    // The thread continues after termination is requested until all queued blocks are written or a
+                    // write fails.
+                    boolean successful = true;
+                    while (!UpdateUtil.shouldTerminate() || (successful && (!queue.isEmpty() || pendingSize > 0))) {
+                        try {
+                            Map.Entry<Block, BalanceList> entry = pendingSize > 0 ? null :
+                                    queue.poll(1L, TimeUnit.SECONDS);
+                            if (entry != null) {
+                                pending.add(entry);
+                            }
+                            queue.drainTo(pending, Math.max(0, maximumBatchSize - pending.size()));
+                            successful = writePending();
+
+                            if (!successful) {
+                                Thread.sleep(retryInterval);
+                            }
+                        } catch (Exception e) {
+                            LogUtil.println("FrozenBlockWriter: exception writing blocks: " +
+                                    PrintUtil.printException(e));
+                        }
+                    }
+
+                    if (pendingSize > 0 || !queue.isEmpty()) {
+                        LogUtil.println("FrozenBlockWriter: " + (pendingSize + queue.size()) + " blocks above " +
+                                "durable height " + durableHeight.get() + " were not written before termination");
+                    }
+
+                    alive.set(false);
+                }
+            }, "FrozenBlockWriter").start();
+        }
+    }
+
+    private static boolean writePending() {
+
+        // Blocks are written in freezing order, stopping at the first failure, so the written blocks are always the
+        // start of the pending list.
+        List<File> writtenFiles = new ArrayList<>();
+        int numberWritten = 0;
+        boolean successful = true;
+        while (successful && numberWritten < pending.size()) {
+            Map.Entry<Block, BalanceList> entry = pending.get(numberWritten);
+            Block block = entry.getKey();
+            if (SegmentedBlockStore.isEnabled()) {
+                successful = SegmentedBlockStore.writeBlock(block, entry.getValue());
+            } else {
+                File file = BlockManager.individualFileForBlockHeight(block.getBlockHeight());
+                successful = BlockManager.writeBlocksToFile(Collections.singletonList(block),
+                        Collections.singletonList(entry.getValue()), file);
+                if (successful) {
+                    writtenFiles.add(file);
+                }
+            }
+
+            if (successful) {
+                BalanceListCheckpoints.frozenBlockWritten(block, entry.getValue());
+                numberWritten++;
+            } else {
+                failedWriteCount.incrementAndGet();
+                LogUtil.println("FrozenBlockWriter: unable to write block " + block.getBlockHeight() + "; " +
+                        (pending.size() - numberWritten) + " blocks will be retried");
+            }
+        }
+
+        if (numberWritten > 0) {
+            if (syncBatch) {
+                if (SegmentedBlockStore.isEnabled()) {
+                    SegmentedBlockStore.force();
+                } else {
+                    for (File file : writtenFiles) {
+                        FileUtil.sync(file);
+                    }
+                    FileUtil.sync(BlockManager.individualBlockDirectory);
+                }
+            }
+
+            Block highestBlock = pending.get(numberWritten - 1).getKey();
+            if (highestBlock.getBlockHeight() > durableHeight.get()) {
+                durableHeight.set(highestBlock.getBlockHeight());
+                PersistentData.put(durableHeightKey, highestBlock.getBlockHeight());
+                ChainManifest.blockWritten(highestBlock);
+            }
+            pending.subList(0, numberWritten).clear();
+            space.release(numberWritten);
+            batchCount.incrementAndGet();
+        }
+        pendingSize = pending.size();
+
+        return successful;
+    }
+
+    public static String writerInformation() {
+        return queue.size() + "/" + pendingSize + "/" + batchCount.get() + "/" + durableHeight.get() + "/" +
+                waitCount.get() + "/" + failedWriteCount.get();
+    }
+}
@@ -22,26 +22,89 @@ public class HashUtil {
                 "5df6e0e2761359d30a8275058e299fcc0381534545f55cf43e41983f5d4c9456)");
     }
 
-    private static MessageDigest messageDigest;
-    static {
+    // Each thread gets its own digests, so hashing on the UDP reader, the mesh-listener threads, and the verifier
+    // main loop proceeds without contention. The one-shot digest is used by the methods of this class that hash a
+    // complete input in one call. The streaming digest is handed out by startSHA256() so that a caller can feed it
+    // many ranges without concatenating them; keeping it separate allows one-shot hashing while a stream is open.
+    private static final ThreadLocal<MessageDigest> oneShotDigest = ThreadLocal.withInitial(HashUtil::newDigest);
+    private static final ThreadLocal<MessageDigest> streamDigest = ThreadLocal.withInitial(HashUtil::newDigest);
+
+    private static MessageDigest newDigest() {
+
+        MessageDigest digest = null;
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
+            digest = MessageDigest.getInstance("SHA-256");
         } catch (Exception ignored) {
             ignored.printStackTrace();
         }
+
+        return digest;
     }
 
-    public static synchronized byte[] singleSHA256(byte[] data) {
+    public static byte[] singleSHA256(byte[] data) {
 
         if (data == null) {
             data = new byte[0];
         }
-        return messageDigest.digest(data);
+        return oneShotDigest.get().digest(data);
+    }
+
+    public static byte[] singleSHA256(byte[] data, int offset, int length) {
+
+        MessageDigest digest = oneShotDigest.get();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[] singleSHA256(ByteBuffer buffer) {
+
+        // The buffer is consumed from its position to its limit. A duplicate is used so the caller's position is not
+        // changed.
+        MessageDigest digest = oneShotDigest.get();
+        digest.update(buffer.duplicate());
+        return digest.digest();
+    }
+
+    public static byte[] singleSHA256(byte[]... dataArgs) {
+
+        MessageDigest digest = oneShotDigest.get();
+        for (byte[] data : dataArgs) {
+            digest.update(data);
+        }
+        return digest.digest();
+    }
+
+    public static byte[] doubleSHA256(byte[] data) {
+
+        MessageDigest digest = oneShotDigest.get();
+        return digest.digest(digest.digest(data));
     }
 
-    public static synchronized byte[] doubleSHA256(byte[] data) {
+    public static byte[] doubleSHA256(ByteBuffer buffer) {
 
-        return messageDigest.digest(messageDigest.digest(data));
+        MessageDigest digest = oneShotDigest.get();
+        digest.update(buffer.duplicate());
+        return digest.digest(digest.digest());
+    }
+
+    // Returns this thread's streaming digest, reset and ready for input. The caller updates the digest with any
+    // number of byte ranges or buffers and then completes it with finishSingleSHA256() or finishDoubleSHA256(). Only
+    // one stream may be open on a thread at a time.
+    public static MessageDigest startSHA256() {
+
+        MessageDigest digest = streamDigest.get();
+        digest.reset();
+        return digest;
+    }
+
+    public static byte[] finishSingleSHA256(MessageDigest digest) {
+
+        return digest.digest();
+    }
+
+    public static byte[] finishDoubleSHA256(MessageDigest digest) {
+
+        return digest.digest(digest.digest());
     }
 
     public static long longSHA256(byte[] data) {
@@ -53,18 +116,9 @@ public class HashUtil {
 
     public static long longSHA256(byte[]... dataArgs) {
 
-        int length = 0;
-        for (byte[] data : dataArgs) {
-            length += data.length;
-        }
-
-        byte[] array = new byte[length];
-        ByteBuffer buffer = ByteBuffer.wrap(array);
-        for (byte[] data : dataArgs) {
-            buffer.put(data);
-        }
-
-        return longSHA256(array);
+        byte[] sha256 = singleSHA256(dataArgs);
+        ByteBuffer buffer = ByteBuffer.wrap(sha256);
+        return buffer.getLong();
     }
 
     public static byte[] bLongSHA256(byte[] data) {
@@ -75,18 +129,8 @@ public class HashUtil {
 
     public static byte[] bLongSHA256(byte[]... dataArgs) {
 
-        int length = 0;
-        for (byte[] data : dataArgs) {
-            length += data.length;
-        }
-
-        byte[] array = new byte[length];
-        ByteBuffer buffer = ByteBuffer.wrap(array);
-        for (byte[] data : dataArgs) {
-            buffer.put(data);
-        }
-
-        return bLongSHA256(array);
+        byte[] sha256 = singleSHA256(dataArgs);
+        return Arrays.copyOf(sha256, 8);
     }
 
     public static byte[] byteArray(int value) {
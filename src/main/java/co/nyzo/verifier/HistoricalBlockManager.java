@@ -7,6 +7,7 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -15,6 +16,12 @@ public class HistoricalBlockManager {
     public static final String startManagerKey = "start_historical_block_manager";
     private static final AtomicBoolean alive = new AtomicBoolean(false);
 
+    // Consolidated files are now written with their offset files, so offset files only need to be built for files
+    // written before that change or for writes that failed or were interrupted. All files at or below this height
+    // have been consolidated and checked, so each scan only needs to examine files above it. A failed offset write
+    // lowers the height so that the file is checked again.
+    private static long checkedThroughHeight = -1L;
+
     public static void start() {
 
         // Start the manager if the preference indicates. Resource usage is not trivial, so the default is false.
@@ -56,42 +63,94 @@ public class HistoricalBlockManager {
 
         // This is a brute-force process for finding which offset file to build. Just before a consolidated file is
         // written by the block-file consolidator, its corresponding offset file is deleted to ensure that stale offset
-        // files do not exist. This process checks all consolidated files backward from the frozen edge. When a
-        // consolidated file without an offset file is found, the offset file is built.
+        // files do not exist, and the new offset file is written along with the consolidated file. This process checks
+        // consolidated files backward from the frozen edge to the height already checked. When a consolidated file
+        // without an offset file is found, the offset file is built.
+        long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
+        long startCheckedThroughHeight = getCheckedThroughHeight();
         long offsetFileHeight = -1L;
-        for (long height = BlockManager.getFrozenEdgeHeight(); height >= 0 && offsetFileHeight < 0;
+        long newCheckedThroughHeight = frozenEdgeHeight - frozenEdgeHeight % BlockManager.blocksPerFile - 1L;
+        for (long height = frozenEdgeHeight; height > startCheckedThroughHeight && offsetFileHeight < 0;
              height -= BlockManager.blocksPerFile) {
-            if (BlockManager.consolidatedFileForBlockHeight(height).exists() && !offsetFileForHeight(height).exists()) {
+            File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(height);
+            if (!consolidatedFile.exists()) {
+                // A file that has not been consolidated yet may be consolidated later, so it must be checked again.
+                newCheckedThroughHeight = height - height % BlockManager.blocksPerFile - 1L;
+            } else if (!offsetFileForHeight(height).exists()) {
                 offsetFileHeight = height;
             }
         }
 
+        // If no file needed an offset file, all consolidated files below the lowest file that has not been
+        // consolidated, and below the file containing the frozen edge, have been checked.
+        if (offsetFileHeight < 0) {
+            advanceCheckedThroughHeight(startCheckedThroughHeight, newCheckedThroughHeight);
+        }
+
         if (offsetFileHeight >= 0) {
             // Calculate the offsets.
             File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(offsetFileHeight);
             int[] offsets = blockOffsetsForConsolidatedFile(consolidatedFile);
 
-            // Write the offsets to the file.
-            byte[] offsetBytes = new byte[offsets.length * 4];
-            ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
-            for (int offset : offsets) {
-                offsetBuffer.putInt(offset);
-            }
-            try {
-                Files.write(Paths.get(offsetFileForHeight(offsetFileHeight).getAbsolutePath()), offsetBytes);
-            } catch (Exception ignored) { }
+            // Write the offsets to the file. A failure leaves the file to be found again in the next scan.
+            writeOffsetFile(offsetFileHeight, offsets);
+        }
+    }
+
+    private static synchronized long getCheckedThroughHeight() {
+        return checkedThroughHeight;
+    }
+
+    private static synchronized void advanceCheckedThroughHeight(long expectedHeight, long height) {
+
+        // If a failed offset write lowered the height during the scan, the lower height is kept.
+        if (checkedThroughHeight == expectedHeight) {
+            checkedThroughHeight = Math.max(checkedThroughHeight, height);
+        }
+    }
+
+    public static synchronized void offsetFileWriteFailed(long height) {
+
+        LogUtil.println("HistoricalBlockManager: unable to write offset file for height " + height +
+                "; the file will be checked again");
+        checkedThroughHeight = Math.min(checkedThroughHeight, height - height % BlockManager.blocksPerFile - 1L);
+    }
+
+    public static int[] emptyOffsets() {
+
+        // The offsets contain a start offset and an end offset for each of the 1000 blocks that might be in a
+        // consolidated file. Blocks that are not in the file have offsets of -1.
+        int[] offsets = new int[(int) BlockManager.blocksPerFile * 2];
+        Arrays.fill(offsets, -1);
+
+        return offsets;
+    }
+
+    public static void setOffsets(int[] offsets, long blockHeight, int blockStartOffset, int blockEndOffset) {
+
+        // The block heights are implicit, relative to the start height of the file.
+        int offsetArrayIndex = (int) (blockHeight % BlockManager.blocksPerFile);
+        if (offsetArrayIndex >= 0 && offsetArrayIndex < BlockManager.blocksPerFile) {
+            offsets[offsetArrayIndex * 2] = blockStartOffset;
+            offsets[offsetArrayIndex * 2 + 1] = blockEndOffset;
         }
     }
 
+    public static boolean writeOffsetFile(long height, int[] offsets) {
+
+        byte[] offsetBytes = new byte[offsets.length * 4];
+        ByteBuffer offsetBuffer = ByteBuffer.wrap(offsetBytes);
+        for (int offset : offsets) {
+            offsetBuffer.putInt(offset);
+        }
+        return FileUtil.writeFile(Paths.get(offsetFileForHeight(height).getAbsolutePath()), offsetBytes);
+    }
+
     private static int[] blockOffsetsForConsolidatedFile(File file) {
 
         // The result contains a start offset and an end offset for each of the 1000 blocks that might be in the file.
-        // The block heights are implicit, relative to the start height of the file. The offsets are 32-bit integers.
-        int blocksPerFile = (int) BlockManager.blocksPerFile;
-        int[] offsets = new int[blocksPerFile * 2];
-        for (int i = 0; i < blocksPerFile; i++) {
-            offsets[i] = -1;
-        }
+        // The offsets are 32-bit integers.
+        int[] offsets = emptyOffsets();
 
         // Generate the offsets.
         if (file.exists()) {
@@ -113,11 +172,7 @@ public class HistoricalBlockManager {
                     }
 
                     // Store the offsets in the array.
-                    int offsetArrayIndex = (int) (block.getBlockHeight() % BlockManager.blocksPerFile);
-                    if (offsetArrayIndex >= 0 && offsetArrayIndex < blocksPerFile) {
-                        offsets[offsetArrayIndex * 2] = blockStartOffset;
-                        offsets[offsetArrayIndex * 2 + 1] = blockEndOffset;
-                    }
+                    setOffsets(offsets, block.getBlockHeight(), blockStartOffset, blockEndOffset);
 
                     // Store the block for use in the next iteration.
                     previousBlock = block;
@@ -130,9 +185,21 @@ public class HistoricalBlockManager {
 
     public static Block blockForHeight(long height) {
 
-        // First, look to individual files that may not have been consolidated yet.
-        File file = BlockManager.individualFileForBlockHeight(height);
+        // First, look to the segmented block store, if enabled, and then to the files.
+        Block block = SegmentedBlockStore.isEnabled() ? SegmentedBlockStore.blockForHeight(height) : null;
+        if (block == null) {
+            block = blockForHeightFromFiles(height);
+        }
+
+        return block;
+    }
+
+    public static Block blockForHeightFromFiles(long height) {
+
+        // This does not look to the segmented block store, so a caller that has already looked there does not look
+        // again. First, look to individual files that may not have been consolidated yet.
         Block block = null;
+        File file = BlockManager.individualFileForBlockHeight(height);
         if (file.exists()) {
             List<Block> blocksInFile = BlockManager.loadBlocksInFile(file, height, height);
             if (blocksInFile.size() > 0 && blocksInFile.get(0).getBlockHeight() == height) {
@@ -0,0 +1,137 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PreferencesUtil;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class HistoricalBlockService {
+
+    // This is the read path for blocks requested by clients and peers rather than by consensus: RPC queries, block
+    // requests, and client searches. BlockManager.frozenBlockForHeight() may extract a consolidated file to individual
+    // files and adds every block it loads to BlockManagerMap. This service does neither. It checks the blocks already
+    // in memory, then its own bounded least-recently-used cache, then reads from storage without writing anything.
+    // Heavy query traffic can evict blocks from this cache, but it cannot change what consensus has in memory or on
+    // disk.
+
+    private static final int maximumCacheSize = PreferencesUtil.getInt("historical_block_cache_size", 2000);
+    private static final int maximumFileCacheSize = PreferencesUtil.getInt("historical_file_cache_size", 4);
+
+    private static final Map<Long, Block> cache = new LinkedHashMap<Long, Block>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Block> eldest) {
+            return size() > maximumCacheSize;
+        }
+    };
+
+    // Consolidated files without offset files must be read and parsed completely to read any of their blocks. The
+    // parsed blocks of the most recently read files are kept here, by file, so that requests for nearby heights do
+    // not read the file again and do not displace the single-block cache.
+    private static final Map<Long, Map<Long, Block>> fileCache = new LinkedHashMap<Long, Map<Long, Block>>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Map<Long, Block>> eldest) {
+            return size() > maximumFileCacheSize;
+        }
+    };
+
+    private static final LongAdder hitCount = new LongAdder();
+    private static final LongAdder missCount = new LongAdder();
+
+    public static Block blockForHeight(long height) {
+
+        Block block = null;
+        if (height >= 0L && height <= BlockManager.getFrozenEdgeHeight()) {
+
+            // Blocks in the consensus window, and the Genesis block, are read from the block map without modifying it.
+            block = BlockManagerMap.blockForHeight(height);
+
+            if (block == null) {
+                synchronized (cache) {
+                    block = cache.get(height);
+                }
+
+                if (block == null) {
+                    missCount.increment();
+                    block = loadBlock(height);
+                } else {
+                    hitCount.increment();
+                }
+            }
+        }
+
+        return block;
+    }
+
+    private static Block loadBlock(long height) {
+
+        // The segmented block store, individual files, and indexed consolidated files provide single-block reads.
+        // The store is checked once, and the files are then checked without checking the store again.
+        Block block = SegmentedBlockStore.isEnabled() ? SegmentedBlockStore.blockForHeight(height) : null;
+        if (block == null) {
+            block = HistoricalBlockManager.blockForHeightFromFiles(height);
+        }
+        if (block == null) {
+            block = blockFromUnindexedFile(height);
+        }
+
+        if (block != null) {
+            cacheBlock(block);
+        }
+
+        return block;
+    }
+
+    private static Block blockFromUnindexedFile(long height) {
+
+        // If the consolidated file does not yet have an offset file, it is read and parsed completely, once, and its
+        // blocks are kept in the file cache.
+        long startHeight = height - height % BlockManager.blocksPerFile;
+        Map<Long, Block> fileBlocks;
+        synchronized (fileCache) {
+            fileBlocks = fileCache.get(startHeight);
+        }
+
+        if (fileBlocks == null) {
+            File consolidatedFile = BlockManager.consolidatedFileForBlockHeight(startHeight);
+            if (consolidatedFile.exists() && !HistoricalBlockManager.offsetFileForHeight(startHeight).exists()) {
+                List<Block> blocks = BlockManager.loadBlocksInFile(consolidatedFile, startHeight,
+                        startHeight + BlockManager.blocksPerFile - 1L);
+                fileBlocks = new HashMap<>();
+                for (Block fileBlock : blocks) {
+                    fileBlocks.put(fileBlock.getBlockHeight(), fileBlock);
+                }
+                synchronized (fileCache) {
+                    fileCache.put(startHeight, fileBlocks);
+                }
+            }
+        }
+
+        return fileBlocks == null ? null : fileBlocks.get(height);
+    }
+
+    private static void cacheBlock(Block block) {
+
+        synchronized (cache) {
+            cache.put(block.getBlockHeight(), block);
+        }
+    }
+
+    public static String cacheInformation() {
+
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        int numberOfFiles;
+        synchronized (fileCache) {
+            numberOfFiles = fileCache.size();
+        }
+
+        return size + "/" + numberOfFiles + "/" + hitCount.sum() + "/" + missCount.sum();
+    }
+}
@@ -4,6 +4,7 @@ import co.nyzo.verifier.messages.*;
 import co.nyzo.verifier.messages.debug.*;
 import co.nyzo.verifier.util.*;
 
+import java.io.DataInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.ServerSocket;
@@ -71,7 +72,7 @@ public class MeshListener {
     private static int portUdp;
 
     public static int getPortTcp() {
-        return portTcp;
+        return MeshSelectorListener.isEnabled() ? MeshSelectorListener.getPort() : portTcp;
     }
 
     public static int getPortUdp() {
@@ -91,7 +92,11 @@ public class MeshListener {
     public static void start() {
 
         if (!aliveTcp.getAndSet(true)) {
-            startSocketThreadTcp();
+            if (MeshSelectorListener.isEnabled()) {
+                MeshSelectorListener.start(standardPortTcp, aliveTcp);
+            } else {
+                startSocketThreadTcp();
+            }
         }
 
         if (!aliveUdp.getAndSet(true)) {
@@ -101,6 +106,11 @@ public class MeshListener {
 
     public static void startSocketThreadTcp() {
 
+        startSocketThreadTcp(standardPortTcp);
+    }
+
+    public static void startSocketThreadTcp(int port) {
+
         Map<ByteBuffer, Integer> connectionsPerIp = new ConcurrentHashMap<>();
         AtomicInteger activeReadThreads = new AtomicInteger(0);
 
@@ -108,7 +118,7 @@ public class MeshListener {
             @Override
             public void run() {
                 try {
-                    serverSocketTcp = new ServerSocket(standardPortTcp);
+                    serverSocketTcp = new ServerSocket(port);
                     portTcp = serverSocketTcp.getLocalPort();
 
                     while (!UpdateUtil.shouldTerminate()) {
@@ -258,6 +268,32 @@ public class MeshListener {
     private static void processSocket(Socket clientSocket, AtomicInteger activeReadThreads,
                                       Map<ByteBuffer, Integer> connectionsPerIp) {
 
+        ByteBuffer ipBuffer = admitConnection(clientSocket, activeReadThreads, connectionsPerIp);
+        if (ipBuffer != null) {
+
+            // Read the message and respond.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    try {
+                        clientSocket.setSoTimeout(300);
+                        readMessageAndRespond(clientSocket);  // socket is closed in this method
+                    } catch (Exception ignored) { }
+
+                    releaseConnection(ipBuffer, activeReadThreads, connectionsPerIp);
+                }
+            }, "MeshListener-clientSocketTcp").start();
+        }
+    }
+
+    static ByteBuffer admitConnection(Socket clientSocket, AtomicInteger activeConnections,
+                                      Map<ByteBuffer, Integer> connectionsPerIp) {
+
+        // This applies the blacklist and the per-IP connection limit to a new connection. If the connection is
+        // admitted, the IP address is returned, and releaseConnection() must be called when the connection is
+        // finished. Otherwise, the socket is closed and null is returned.
+        ByteBuffer result = null;
         byte[] ipAddress = clientSocket.getInetAddress().getAddress();
         if (BlacklistManager.inBlacklist(ipAddress)) {
             numberOfMessagesRejected.incrementAndGet();
@@ -277,61 +313,73 @@ public class MeshListener {
                 ConnectionManager.fastCloseSocket(clientSocket);
 
             } else {
-
-                // Read the message and respond.
                 numberOfMessagesAccepted.incrementAndGet();
-                activeReadThreads.incrementAndGet();
-                new Thread(new Runnable() {
-                    @Override
-                    public void run() {
+                activeConnections.incrementAndGet();
+                result = ipBuffer;
+            }
+        }
 
-                        try {
-                            clientSocket.setSoTimeout(300);
-                            readMessageAndRespond(clientSocket);  // socket is closed in this method
-                        } catch (Exception ignored) { }
+        return result;
+    }
 
-                        // Decrement the counter for this IP.
-                        connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
+    static void releaseConnection(ByteBuffer ipBuffer, AtomicInteger activeConnections,
+                                  Map<ByteBuffer, Integer> connectionsPerIp) {
 
-                        if (activeReadThreads.decrementAndGet() == 0) {
+        // Decrement the counter for this IP.
+        connectionsPerIp.merge(ipBuffer, -1, mergeFunction);
 
-                            // When the number of active threads is zero, clear the map of
-                            // connections per IP to prevent accumulation of too many IP
-                            // addresses over time.
-                            connectionsPerIp.clear();
-                        }
-                    }
-                }, "MeshListener-clientSocketTcp").start();
-            }
+        if (activeConnections.decrementAndGet() == 0) {
+
+            // When the number of active connections is zero, clear the map of connections per IP to prevent
+            // accumulation of too many IP addresses over time.
+            connectionsPerIp.clear();
         }
     }
 
     private static void readMessageAndRespond(Socket clientSocket) {
 
+        boolean persistentConnection = false;
         try {
-            Message message = Message.readFromStream(clientSocket.getInputStream(),
-                    IpUtil.addressFromString(clientSocket.getRemoteSocketAddress() + ""),
-                    MessageType.IncomingRequest65533);
+            byte[] ipAddress = IpUtil.addressFromString(clientSocket.getRemoteSocketAddress() + "");
+            DataInputStream inputStream = new DataInputStream(clientSocket.getInputStream());
+            int messageLength = inputStream.readInt();
+
+            // A persistent-connection preamble is not a valid message length. If persistent connections are enabled,
+            // the connection is served until it closes. Otherwise, it is handled as an invalid message.
+            if (messageLength == PeerConnectionPool.preamble && PeerConnectionPool.isEnabled()) {
+                persistentConnection = true;
+                PeerConnectionServer.serve(clientSocket, ipAddress);  // socket is closed in this method
+            } else {
+                byte[] messageBytes = Message.readMessageBytes(inputStream, messageLength);
+                Message message = messageBytes.length == 0 ? null : Message.fromBytes(messageBytes, ipAddress, false);
 
-            if (message != null) {
+                if (message != null) {
 
-                // To aid in debugging receipt of UDP block votes, the verifier produces counts of both TCP and UDP
-                // block votes. This is a temporary feature; it will be removed in a future version.
-                if (message.getType() == MessageType.BlockVote19) {
-                    blockVoteTcpCount++;
-                }
-
-                // Produce and send the response.
-                Message response = response(message);
-                if (response != null) {
-                    clientSocket.getOutputStream().write(response.getBytesForTransmission());
-                    clientSocket.getOutputStream().flush();
+                    // Produce and send the response.
+                    Message response = tcpResponse(message);
+                    if (response != null) {
+                        clientSocket.getOutputStream().write(response.getBytesForTransmission());
+                        clientSocket.getOutputStream().flush();
+                    }
                 }
             }
 
         } catch (Exception ignored) { }
 
-        ConnectionManager.slowCloseSocket(clientSocket);
+        if (!persistentConnection) {
+            ConnectionManager.slowCloseSocket(clientSocket);
+        }
+    }
+
+    static Message tcpResponse(Message message) {
+
+        // To aid in debugging receipt of UDP block votes, the verifier produces counts of both TCP and UDP block votes.
+        // This is a temporary feature; it will be removed in a future version.
+        if (message.getType() == MessageType.BlockVote19) {
+            blockVoteTcpCount++;
+        }
+
+        return response(message);
     }
 
     private static void readMessage(DatagramPacket packet) {
@@ -358,6 +406,8 @@ public class MeshListener {
 
     public static void closeSockets() {
 
+        MeshSelectorListener.close();
+
         if (serverSocketTcp != null) {
             try {
                 serverSocketTcp.close();
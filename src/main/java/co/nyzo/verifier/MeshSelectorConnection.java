@@ -0,0 +1,110 @@
+package co.nyzo.verifier;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+class MeshSelectorConnection {
+
+    // This is the state of one incoming TCP connection handled by MeshSelectorListener. A connection reads one
+    // length-prefixed message, waits while a worker produces the response, writes the response, and is closed. The
+    // read state is only used by the connection's I/O thread. The response is set by a worker and handed to the I/O
+    // thread through its queue of pending writes.
+
+    private final SocketChannel channel;
+    private final ByteBuffer ipBuffer;
+    private final int selectorIndex;
+    private SelectionKey key;
+
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+    private byte[] payload = null;
+    private int payloadPosition = 0;
+    private long lastActivityTimestamp;
+
+    private volatile ByteBuffer responseBuffer = null;
+
+    MeshSelectorConnection(SocketChannel channel, ByteBuffer ipBuffer, int selectorIndex) {
+        this.channel = channel;
+        this.ipBuffer = ipBuffer;
+        this.selectorIndex = selectorIndex;
+        this.lastActivityTimestamp = System.currentTimeMillis();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    ByteBuffer getIpBuffer() {
+        return ipBuffer;
+    }
+
+    byte[] getIpAddress() {
+        return ipBuffer.array();
+    }
+
+    int getSelectorIndex() {
+        return selectorIndex;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    long getLastActivityTimestamp() {
+        return lastActivityTimestamp;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    ByteBuffer getResponseBuffer() {
+        return responseBuffer;
+    }
+
+    void setResponse(byte[] response) {
+        this.responseBuffer = response == null ? null : ByteBuffer.wrap(response);
+    }
+
+    int consume(ByteBuffer buffer, long maximumMessageLength) {
+
+        // This copies bytes from the I/O thread's read buffer. The first four bytes are the message length, which
+        // includes the length field itself. It returns 1 when the message is complete, -1 when the length is not
+        // valid, 2 when the length is a persistent-connection preamble, and 0 when more bytes are needed. Bytes after
+        // the end of the message are ignored, as only one message is read per connection. A peer opening a persistent
+        // connection sends nothing after the preamble until the preamble is returned.
+        lastActivityTimestamp = System.currentTimeMillis();
+        int result = 0;
+        if (payload == null) {
+            while (lengthBuffer.hasRemaining() && buffer.hasRemaining()) {
+                lengthBuffer.put(buffer.get());
+            }
+
+            if (!lengthBuffer.hasRemaining()) {
+                int messageLength = lengthBuffer.getInt(0);
+                if (messageLength == PeerConnectionPool.preamble && PeerConnectionPool.isEnabled()) {
+                    result = 2;
+                } else if (messageLength <= 4 || messageLength > maximumMessageLength) {
+                    result = -1;
+                } else {
+                    payload = new byte[messageLength - 4];
+                }
+            }
+        }
+
+        if (payload != null) {
+            int length = Math.min(buffer.remaining(), payload.length - payloadPosition);
+            buffer.get(payload, payloadPosition, length);
+            payloadPosition += length;
+            if (payloadPosition == payload.length) {
+                result = 1;
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,343 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MeshSelectorListener {
+
+    // This is a non-blocking front end for the TCP mesh listener. Instead of a thread per connection, one thread
+    // accepts connections and distributes them among a fixed set of I/O threads, each with its own selector and its
+    // own direct read buffer, which is reused for every read on that thread. When a connection's message has been
+    // read, it is handed to a fixed pool of workers through a bounded queue; the worker parses the message, produces
+    // the response with MeshListener.response(), and hands the response back to the I/O thread to write. If the
+    // queue is full, the connection is closed without a response, as it would be if it could not be read in time.
+    //
+    // Each connection is subject to the same blacklist and per-IP limit as the thread-per-connection listener, and
+    // the same 300-millisecond read timeout, applied here as the longest time without receiving bytes.
+    // A connection that starts with a persistent-connection preamble is taken out of the selector and served in
+    // blocking mode by PeerConnectionServer on a thread of its own.
+    //
+    // This front end is enabled with the mesh_listener_selector preference.
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("mesh_listener_selector", false);
+    private static final int ioThreadCount = Math.max(1, PreferencesUtil.getInt("mesh_listener_io_threads", 2));
+    private static final int workerThreadCount = Math.max(1,
+            PreferencesUtil.getInt("mesh_listener_worker_threads", 16));
+    private static final int workerQueueSize = Math.max(1, PreferencesUtil.getInt("mesh_listener_queue_size", 1000));
+    private static final long readTimeout = 300L;
+    private static final int readBufferSize = 64 * 1024;
+
+    private static ServerSocketChannel serverChannel = null;
+    private static volatile int port = -1;
+    private static Selector[] selectors = null;
+    private static List<Queue<MeshSelectorConnection>> pendingRegistrations = null;
+    private static List<Queue<MeshSelectorConnection>> pendingWrites = null;
+    private static ThreadPoolExecutor workers = null;
+
+    private static final Map<ByteBuffer, Integer> connectionsPerIp = new ConcurrentHashMap<>();
+    private static final AtomicInteger activeConnections = new AtomicInteger(0);
+    private static final AtomicLong handoffRejectionCount = new AtomicLong(0L);
+    private static final AtomicLong timeoutCount = new AtomicLong(0L);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static int getPort() {
+        return port;
+    }
+
+    public static synchronized void start(int listenPort, AtomicBoolean alive) {
+
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(listenPort));
+            port = serverChannel.socket().getLocalPort();
+
+            selectors = new Selector[ioThreadCount];
+            pendingRegistrations = new ArrayList<>();
+            pendingWrites = new ArrayList<>();
+            for (int i = 0; i < ioThreadCount; i++) {
+                selectors[i] = Selector.open();
+                pendingRegistrations.add(new ConcurrentLinkedQueue<MeshSelectorConnection>());
+                pendingWrites.add(new ConcurrentLinkedQueue<MeshSelectorConnection>());
+            }
+
+            workers = new ThreadPoolExecutor(workerThreadCount, workerThreadCount, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(workerQueueSize), new ThreadFactory() {
+                private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MeshSelectorListener-worker-" +
+                            threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("Exception trying to open selector mesh listener. Exiting.");
+            UpdateUtil.terminate();
+            alive.set(false);
+        }
+
+        if (selectors != null && workers != null) {
+            for (int i = 0; i < ioThreadCount; i++) {
+                int selectorIndex = i;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runSelector(selectorIndex);
+                    }
+                }, "MeshSelectorListener-io-" + i).start();
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runAcceptor();
+                    alive.set(false);
+                }
+            }, "MeshSelectorListener-accept").start();
+        }
+    }
+
+    private static void runAcceptor() {
+
+        int nextSelectorIndex = 0;
+        while (!UpdateUtil.shouldTerminate() && serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                ByteBuffer ipBuffer = MeshListener.admitConnection(channel.socket(), activeConnections,
+                        connectionsPerIp);
+                if (ipBuffer != null) {
+                    MeshSelectorConnection connection = new MeshSelectorConnection(channel, ipBuffer,
+                            nextSelectorIndex);
+                    pendingRegistrations.get(nextSelectorIndex).add(connection);
+                    selectors[nextSelectorIndex].wakeup();
+                    nextSelectorIndex = (nextSelectorIndex + 1) % ioThreadCount;
+                }
+            } catch (Exception ignored) { }
+        }
+
+        close();
+    }
+
+    private static void runSelector(int selectorIndex) {
+
+        Selector selector = selectors[selectorIndex];
+        Queue<MeshSelectorConnection> registrations = pendingRegistrations.get(selectorIndex);
+        Queue<MeshSelectorConnection> writes = pendingWrites.get(selectorIndex);
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(readBufferSize);
+        Set<MeshSelectorConnection> readingConnections = new HashSet<>();
+        List<MeshSelectorConnection> persistentConnections = new ArrayList<>();
+
+        while (!UpdateUtil.shouldTerminate() && selector.isOpen()) {
+            try {
+                selector.select(100L);
+
+                // Register new connections for reading.
+                MeshSelectorConnection connection;
+                while ((connection = registrations.poll()) != null) {
+                    try {
+                        connection.getChannel().configureBlocking(false);
+                        connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ,
+                                connection));
+                        readingConnections.add(connection);
+                    } catch (Exception e) {
+                        finish(connection, false);
+                    }
+                }
+
+                // Start writing responses produced by the workers. A connection without a response is closed.
+                while ((connection = writes.poll()) != null) {
+                    if (connection.getResponseBuffer() == null) {
+                        finish(connection, true);
+                    } else {
+                        connection.getKey().interestOps(SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    connection = (MeshSelectorConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection, readBuffer, readingConnections, persistentConnections);
+                        } else if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (Exception e) {
+                        readingConnections.remove(connection);
+                        finish(connection, false);
+                    }
+                }
+
+                // Connections that sent a persistent-connection preamble are served in blocking mode on threads of
+                // their own. Their keys have been cancelled, and selectNow() completes the cancellation, which is
+                // required before their channels can be made blocking.
+                if (!persistentConnections.isEmpty()) {
+                    selector.selectNow();
+                    for (MeshSelectorConnection persistentConnection : persistentConnections) {
+                        servePersistentConnection(persistentConnection);
+                    }
+                    persistentConnections.clear();
+                }
+
+                // Close connections that have not sent bytes within the read timeout.
+                long timeoutThreshold = System.currentTimeMillis() - readTimeout;
+                Iterator<MeshSelectorConnection> readingIterator = readingConnections.iterator();
+                while (readingIterator.hasNext()) {
+                    connection = readingIterator.next();
+                    if (connection.getLastActivityTimestamp() < timeoutThreshold) {
+                        readingIterator.remove();
+                        timeoutCount.incrementAndGet();
+                        finish(connection, true);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                // The listener was closed.
+            } catch (Exception e) {
+                System.out.println("exception in selector mesh listener: " + PrintUtil.printException(e));
+            }
+        }
+
+        for (MeshSelectorConnection connection : readingConnections) {
+            finish(connection, false);
+        }
+    }
+
+    private static void read(MeshSelectorConnection connection, ByteBuffer readBuffer,
+                             Set<MeshSelectorConnection> readingConnections,
+                             List<MeshSelectorConnection> persistentConnections) throws Exception {
+
+        readBuffer.clear();
+        int bytesRead = connection.getChannel().read(readBuffer);
+        readBuffer.flip();
+        int state = bytesRead < 0 ? -1 : connection.consume(readBuffer, Message.maximumMessageLength);
+        if (state != 0) {
+            readingConnections.remove(connection);
+            connection.getKey().interestOps(0);
+            if (state < 0) {
+                finish(connection, true);
+            } else if (state == 2) {
+                connection.getKey().cancel();
+                persistentConnections.add(connection);
+            } else {
+                handOff(connection);
+            }
+        }
+    }
+
+    private static void servePersistentConnection(MeshSelectorConnection connection) {
+
+        try {
+            connection.getChannel().configureBlocking(true);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PeerConnectionServer.serve(connection.getChannel().socket(), connection.getIpAddress());
+                    MeshListener.releaseConnection(connection.getIpBuffer(), activeConnections, connectionsPerIp);
+                }
+            }, "MeshSelectorListener-persistent").start();
+        } catch (Exception e) {
+            finish(connection, false);
+        }
+    }
+
+    private static void handOff(MeshSelectorConnection connection) {
+
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+
+                    byte[] response = null;
+                    try {
+                        Message message = Message.fromBytes(connection.getPayload(), connection.getIpAddress(),
+                                false);
+                        if (message != null) {
+                            Message responseMessage = MeshListener.tcpResponse(message);
+                            if (responseMessage != null) {
+                                response = responseMessage.getBytesForTransmission();
+                            }
+                        }
+                    } catch (Exception ignored) { }
+
+                    connection.setResponse(response);
+                    pendingWrites.get(connection.getSelectorIndex()).add(connection);
+                    selectors[connection.getSelectorIndex()].wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            handoffRejectionCount.incrementAndGet();
+            finish(connection, false);
+        }
+    }
+
+    private static void write(MeshSelectorConnection connection) throws Exception {
+
+        ByteBuffer responseBuffer = connection.getResponseBuffer();
+        connection.getChannel().write(responseBuffer);
+        if (!responseBuffer.hasRemaining()) {
+            finish(connection, true);
+        }
+    }
+
+    private static void finish(MeshSelectorConnection connection, boolean slowClose) {
+
+        // As with the thread-per-connection listener, a connection that has been served is closed after a delay, so the
+        // peer can read the response; a connection that has failed is closed immediately.
+        SelectionKey key = connection.getKey();
+        if (key != null) {
+            key.cancel();
+        }
+
+        if (slowClose) {
+            ConnectionManager.slowCloseSocket(connection.getChannel().socket());
+        } else {
+            ConnectionManager.fastCloseSocket(connection.getChannel().socket());
+        }
+
+        MeshListener.releaseConnection(connection.getIpBuffer(), activeConnections, connectionsPerIp);
+    }
+
+    public static synchronized void close() {
+
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (Exception ignored) { }
+        }
+
+        if (selectors != null) {
+            for (Selector selector : selectors) {
+                try {
+                    selector.close();
+                } catch (Exception ignored) { }
+            }
+        }
+
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    public static String listenerInformation() {
+
+        return activeConnections.get() + "/" + (workers == null ? 0 : workers.getQueue().size()) + "/" +
+                handoffRejectionCount.get() + "/" + timeoutCount.get();
+    }
+}
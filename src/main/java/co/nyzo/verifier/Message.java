@@ -9,7 +9,8 @@ import co.nyzo.verifier.util.LogUtil;
 import co.nyzo.verifier.util.PrintUtil;
 import co.nyzo.verifier.util.SignatureUtil;
 
-import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.*;
@@ -19,11 +20,12 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Message {
 
-    private static final long maximumMessageLength = 4194304;  // 4 MB
+    public static final long maximumMessageLength = 4194304;  // 4 MB
     private static final Set<ByteBuffer> whitelist = ConcurrentHashMap.newKeySet();
     private static final Set<MessageType> disallowedNonCycleTypes = new HashSet<>(Arrays.asList(MessageType.BlockVote19,
             MessageType.NewVerifierVote21, MessageType.MissingBlockVoteRequest23, MessageType.MissingBlockRequest25));
@@ -124,8 +126,19 @@ public class Message {
         // Send the message to all nodes in the current cycle and the top in the new-verifier queue.
         Set<Node> nodes = BlockManager.getCurrentAndNearCycleNodes();
         System.out.println("broadcasting message: " + message.getType() + " to " + nodes.size());
+        List<Node> recipients = new ArrayList<>();
         for (Node node : nodes) {
             if (node.isActive() && !ByteUtil.arraysAreEqual(node.getIdentifier(), Verifier.getIdentifier())) {
+                recipients.add(node);
+            }
+        }
+
+        // The fan-out serializes the message once for all recipients. Otherwise, each recipient is sent the message
+        // with a separate fetch.
+        if (BroadcastFanOut.isEnabled()) {
+            BroadcastFanOut.broadcast(message, recipients);
+        } else {
+            for (Node node : recipients) {
                 fetch(node, message, null);
             }
         }
@@ -182,65 +195,133 @@ public class Message {
         }
     }
 
-    public static void fetchTcp(String hostNameOrIp, int port, Message message, MessageCallback messageCallback) {
+    public static CompletableFuture<Message> fetchAsync(Node node, Message message) {
+
+        // The future is completed with the response, or with null if there is no valid response. Messages sent by
+        // UDP do not receive responses, so their futures are completed with null when they are sent.
+        CompletableFuture<Message> future;
+        if (udpTypes.contains(message.getType()) && node.getPortUdp() > 0) {
+            sendUdp(node.getIpAddress(), node.getPortUdp(), message);
+            future = CompletableFuture.completedFuture(null);
+        } else {
+            future = fetchTcpAsync(IpUtil.addressAsString(node.getIpAddress()), node.getPortTcp(), message);
+        }
+
+        return future;
+    }
+
+    public static CompletableFuture<Message> fetchTcpAsync(String hostNameOrIp, int port, Message message) {
+
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        if (tcpSendAllowed(message)) {
+            fetchTcp(hostNameOrIp, port, message, new MessageCallback() {
+                @Override
+                public void responseReceived(Message message) {
+                    future.complete(message);
+                }
+            });
+        } else {
+            future.complete(null);
+        }
+
+        return future;
+    }
+
+    static boolean tcpSendAllowed(Message message) {
 
         // Do not send a message that will get this IP blacklisted.
-        if (BlockManager.verifierInOrNearCurrentCycle(ByteBuffer.wrap(message.getSourceNodeIdentifier())) ||
-                        BlockManager.inGenesisCycle() || !disallowedNonCycleTypes.contains(message.getType())) {
+        return BlockManager.verifierInOrNearCurrentCycle(ByteBuffer.wrap(message.getSourceNodeIdentifier())) ||
+                BlockManager.inGenesisCycle() || !disallowedNonCycleTypes.contains(message.getType());
+    }
+
+    public static void fetchTcp(String hostNameOrIp, int port, Message message, MessageCallback messageCallback) {
 
-            new Thread(new Runnable() {
+        // Every TCP fetch is routed the same way. First, it is submitted to the shared fetch executor, so no thread
+        // is started for it; if the executor rejects it, the callback receives a null response, as it would if the
+        // peer could not be reached. On the executor, the message is offered to the peer connection pool, which sends
+        // it on a persistent connection if persistent connections are enabled and the peer supports them. Only if the
+        // pool does not take the message is it sent on a one-shot connection, opened for this message alone.
+        if (tcpSendAllowed(message)) {
+            boolean accepted = MessageFetchExecutor.submit(hostNameOrIp + ":" + port, new Runnable() {
                 @Override
                 public void run() {
-                    Socket socket = new Socket();
-                    try {
-                        socket.connect(new InetSocketAddress(hostNameOrIp, port), 2000);
-                    } catch (Exception e) {
-                        if (socket.isConnected()) {
-                            ConnectionManager.fastCloseSocket(socket);
-                        }
-                        socket = null;
+                    if (!PeerConnectionPool.fetch(hostNameOrIp, port, message, messageCallback)) {
+                        fetchTcpOneShot(hostNameOrIp, port, message, messageCallback);
                     }
+                }
+            });
 
-                    Message response = null;
-                    if (socket == null) {
-                        NodeManager.markFailedConnection(hostNameOrIp);
-                    } else {
-                        NodeManager.markSuccessfulConnection(hostNameOrIp);
-
-                        try {
-                            OutputStream outputStream = socket.getOutputStream();
-                            outputStream.write(message.getBytesForTransmission());
-
-                            socket.setSoTimeout(1000);
-                            response = readFromStream(socket.getInputStream(), socket.getInetAddress().getAddress(),
-                                    message.getType());
-                        } catch (Exception reportOnly) {
-                            System.err.println("Exception sending message " + message.getType() + " to " +
-                                    hostNameOrIp + ":" + port + ": " + PrintUtil.printException(reportOnly));
-                        }
-
-                        ConnectionManager.fastCloseSocket(socket);
-                    }
+            if (!accepted) {
+                deliverResponse(messageCallback, null);
+            }
+        }
+    }
 
-                    if (messageCallback != null) {
-                        if (response != null && response.isValid() &&
-                                ((response.getTimestamp() >= System.currentTimeMillis() - replayProtectionInterval &&
-                                        response.getTimestamp() <= System.currentTimeMillis() +
-                                                replayProtectionInterval) ||
-                                        response.getType() == MessageType.TimestampResponse28 ||
-                                        response.getType() == MessageType.Error65534)) {
-                            MessageQueue.add(messageCallback, response);
-                        } else {
-                            MessageQueue.add(messageCallback, null);
-                        }
-                    }
-                }
-            }, "Message-fetch-" + message).start();
+    private static void fetchTcpOneShot(String hostNameOrIp, int port, Message message,
+                                        MessageCallback messageCallback) {
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostNameOrIp, port), 2000);
+        } catch (Exception e) {
+            if (socket.isConnected()) {
+                ConnectionManager.fastCloseSocket(socket);
+            }
+            socket = null;
+        }
+
+        Message response = null;
+        if (socket == null) {
+            NodeManager.markFailedConnection(hostNameOrIp);
+        } else {
+            NodeManager.markSuccessfulConnection(hostNameOrIp);
+
+            try {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(message.getBytesForTransmission());
+
+                socket.setSoTimeout(1000);
+                response = readFromStream(socket.getInputStream(), socket.getInetAddress().getAddress(),
+                        message.getType());
+            } catch (Exception reportOnly) {
+                System.err.println("Exception sending message " + message.getType() + " to " +
+                        hostNameOrIp + ":" + port + ": " + PrintUtil.printException(reportOnly));
+            }
+
+            ConnectionManager.fastCloseSocket(socket);
         }
+
+        deliverResponse(messageCallback, response);
+    }
+
+    static void deliverResponse(MessageCallback messageCallback, Message response) {
+
+        if (messageCallback != null) {
+            if (response != null && response.isValid() &&
+                    ((response.getTimestamp() >= System.currentTimeMillis() - replayProtectionInterval &&
+                            response.getTimestamp() <= System.currentTimeMillis() + replayProtectionInterval) ||
+                            response.getType() == MessageType.TimestampResponse28 ||
+                            response.getType() == MessageType.Error65534)) {
+                MessageQueue.add(messageCallback, response);
+            } else {
+                MessageQueue.add(messageCallback, null);
+            }
+        }
+    }
+
+    static boolean isUdpType(MessageType type) {
+        return udpTypes.contains(type);
     }
 
     public static void sendUdp(byte[] ipAddress, int port, Message message) {
 
+        sendUdp(ipAddress, port, message, null);
+    }
+
+    static void sendUdp(byte[] ipAddress, int port, Message message, byte[] messageBytes) {
+
+        // If the bytes of the message are provided, they are sent as they are, so a message sent to many peers is
+        // serialized only once.
         byte[] identifier = NodeManager.identifierForIpAddress(ipAddress);
 
         // Do not send the message to this verifier, and do not send a message that will get this verifier blacklisted
@@ -251,7 +332,9 @@ public class Message {
                         !disallowedNonCycleTypes.contains(message.getType()))) {
 
             try {
-                byte[] messageBytes = message.getBytesForTransmission();
+                if (messageBytes == null) {
+                    messageBytes = message.getBytesForTransmission();
+                }
                 InetAddress address = Inet4Address.getByAddress(ipAddress);
                 DatagramPacket packet = new DatagramPacket(messageBytes, messageBytes.length, address, port);
                 datagramSocket.send(packet);
@@ -261,7 +344,7 @@ public class Message {
 
     public static Message readFromStream(InputStream inputStream, byte[] sourceIpAddress, MessageType sourceType) {
 
-        byte[] response = getResponse(inputStream);
+        byte[] response = readMessageBytes(inputStream);
         Message message;
         if (response.length == 0) {
             message = null;
@@ -272,44 +355,31 @@ public class Message {
         return message;
     }
 
-    private static byte[] getResponse(InputStream inputStream) {
+    public static byte[] readMessageBytes(InputStream inputStream) {
 
+        // The length and the message are read with blocking reads, which return as soon as data arrives, and the
+        // socket's read timeout bounds each read. If the timeout expires, the stream ends, or the length is not valid,
+        // an empty array is returned rather than a partially filled message. The array returned is the only
+        // allocation for the message; it is not pooled, because it is handed to the decoder with the message.
         byte[] result = new byte[0];
         try {
-            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-            byte[] lengthBytes = new byte[4];
-            bufferedInputStream.read(lengthBytes);
-            int messageLength = ByteBuffer.wrap(lengthBytes).getInt();
-
-            if (messageLength <= maximumMessageLength) {
-                result = new byte[messageLength - 4];
-                int totalBytesRead = 0;
-                boolean readFailure = false;
-                int waitCycles = 0;
-                while (totalBytesRead < result.length && !readFailure && waitCycles < 10) {
-                    int numberOfBytesRead = bufferedInputStream.read(result, totalBytesRead,
-                            result.length - totalBytesRead);
-                    if (numberOfBytesRead < 0) {
-                        readFailure = true;
-                    } else {
-                        if (numberOfBytesRead == 0) {
-                            waitCycles++;
-                        }
-                        totalBytesRead += numberOfBytesRead;
-                    }
+            DataInputStream dataInputStream = new DataInputStream(inputStream);
+            result = readMessageBytes(dataInputStream, dataInputStream.readInt());
+        } catch (Exception ignore) { }
 
-                    try {
-                        Thread.sleep(10);
-                    } catch (Exception ignore) {
-                    }
-                }
+        return result;
+    }
 
-                if (totalBytesRead < result.length) {
-                    System.err.println("only read " + totalBytesRead + " of " + result.length + " for message");
-                }
-            }
+    static byte[] readMessageBytes(DataInputStream inputStream, int messageLength) throws IOException {
 
-        } catch (Exception ignore) { }
+        // This reads the remainder of a message for which the length has already been read. An empty array is
+        // returned for an invalid length, and an exception is thrown if the message cannot be read completely.
+        byte[] result = new byte[0];
+        if (messageLength > 4 && messageLength <= maximumMessageLength) {
+            byte[] message = new byte[messageLength - 4];
+            inputStream.readFully(message);
+            result = message;
+        }
 
         return result;
     }
@@ -0,0 +1,150 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+public class MessageFetchExecutor {
+
+    // Outgoing TCP fetches run on this executor instead of on a new thread each. The number of threads is fixed. If
+    // the runtime supports virtual threads, the executor uses them, so a blocked fetch does not hold a platform
+    // thread; otherwise, it uses ordinary daemon threads.
+    //
+    // The executor applies two limits. The first is the total number of fetches accepted and not yet finished. When
+    // that limit is reached, submit() rejects the fetch immediately rather than waiting, because fetches are
+    // submitted from the main loop and from message handlers, which must not stall. Rejections are counted and
+    // reported in the status response, and the callback of a rejected fetch receives a null response, as it would
+    // for a failed connection. The second is the number of fetches running for each destination. Fetches beyond
+    // that limit wait for an earlier fetch to the same destination to finish, so one slow peer cannot occupy all of
+    // the threads.
+
+    private static final int threadCount = Math.max(1, PreferencesUtil.getInt("fetch_executor_threads", 256));
+    private static final int capacity = Math.max(1, PreferencesUtil.getInt("fetch_executor_capacity", 4000));
+    private static final int maximumRunningPerDestination = Math.max(1,
+            PreferencesUtil.getInt("fetch_executor_per_destination", 4));
+
+    private static final Semaphore capacitySemaphore = new Semaphore(capacity);
+    private static final Map<String, FetchDestination> destinations = new ConcurrentHashMap<>();
+    private static final AtomicInteger waitingForDestinationCount = new AtomicInteger(0);
+    private static final AtomicLong rejectedCount = new AtomicLong(0L);
+    private static final AtomicLong completedCount = new AtomicLong(0L);
+
+    private static final boolean virtualThreads;
+    private static final ThreadPoolExecutor executor;
+    static {
+        ThreadFactory threadFactory = virtualThreadFactory();
+        virtualThreads = threadFactory != null;
+        if (threadFactory == null) {
+            threadFactory = new ThreadFactory() {
+                private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MessageFetchExecutor-" + threadIndex.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+
+        // The queue is not bounded, because the capacity semaphore limits the number of tasks.
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+
+        // Virtual threads are available in Java 21 and later. They are obtained by reflection, so the verifier still
+        // builds and runs on earlier versions.
+        ThreadFactory factory = null;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+                    "MessageFetchExecutor-", 0L);
+            factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception ignored) { }
+
+        return factory;
+    }
+
+    public static boolean submit(String destination, Runnable task) {
+
+        // If this returns false, the task was rejected and will not run.
+        boolean accepted = capacitySemaphore.tryAcquire();
+        if (accepted) {
+            Runnable wrappedTask = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        System.out.println("exception in message fetch: " + PrintUtil.printException(e));
+                    } finally {
+                        completedCount.incrementAndGet();
+                        capacitySemaphore.release();
+                        finishForDestination(destination);
+                    }
+                }
+            };
+
+            startForDestination(destination, wrappedTask);
+        } else {
+            rejectedCount.incrementAndGet();
+        }
+
+        return accepted;
+    }
+
+    private static void startForDestination(String destination, Runnable task) {
+
+        boolean[] started = new boolean[1];
+        destinations.compute(destination, new BiFunction<String, FetchDestination, FetchDestination>() {
+            @Override
+            public FetchDestination apply(String key, FetchDestination fetchDestination) {
+                if (fetchDestination == null) {
+                    fetchDestination = new FetchDestination();
+                }
+                started[0] = fetchDestination.start(task, maximumRunningPerDestination);
+                return fetchDestination;
+            }
+        });
+
+        if (started[0]) {
+            executor.execute(task);
+        } else {
+            waitingForDestinationCount.incrementAndGet();
+        }
+    }
+
+    private static void finishForDestination(String destination) {
+
+        // The destination is removed when it has nothing running or waiting.
+        Runnable[] nextTask = new Runnable[1];
+        destinations.compute(destination, new BiFunction<String, FetchDestination, FetchDestination>() {
+            @Override
+            public FetchDestination apply(String key, FetchDestination fetchDestination) {
+                nextTask[0] = fetchDestination.finish();
+                return fetchDestination.isIdle() ? null : fetchDestination;
+            }
+        });
+
+        if (nextTask[0] != null) {
+            waitingForDestinationCount.decrementAndGet();
+            executor.execute(nextTask[0]);
+        }
+    }
+
+    public static String executorInformation() {
+
+        return executor.getQueue().size() + "/" + executor.getActiveCount() + "/" +
+                waitingForDestinationCount.get() + "/" + rejectedCount.get() + "/" + completedCount.get() +
+                (virtualThreads ? " (virtual)" : "");
+    }
+}
@@ -0,0 +1,195 @@
+package co.nyzo.verifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+class PeerConnection {
+
+    // This is one outgoing persistent connection, managed by PeerConnectionPool. Each request is written as a
+    // request identifier followed by the message, exactly as it would be sent on a one-shot connection. The peer
+    // responds with the same identifier followed by the response, or by a bare length field of 4 if there is no
+    // response, and responses may arrive in any order. A thread for each connection reads the responses and delivers
+    // them to the callbacks of their requests. When the connection closes, all requests still waiting for responses
+    // are completed with null responses.
+
+    private final Socket socket;
+    private final byte[] ipAddress;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Map<Integer, PeerRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestIdentifier = new AtomicInteger(0);
+    private volatile boolean open = true;
+    private volatile long lastActivityTimestamp = System.currentTimeMillis();
+
+    private PeerConnection(Socket socket, DataInputStream inputStream, DataOutputStream outputStream) {
+        this.socket = socket;
+        this.ipAddress = socket.getInetAddress().getAddress();
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    static Socket connect(String hostNameOrIp, int port) throws IOException {
+
+        // An exception is thrown if the connection cannot be opened.
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostNameOrIp, port), 2000);
+        } catch (IOException e) {
+            ConnectionManager.fastCloseSocket(socket);
+            throw e;
+        }
+
+        return socket;
+    }
+
+    static PeerConnection handshake(Socket socket, String hostNameOrIp, int port) throws SocketTimeoutException {
+
+        // If the peer responds to the preamble with the preamble, the connection is returned. If the peer rejects the
+        // preamble, by closing the connection or by replying with anything else, it does not support persistent
+        // connections, and null is returned. If the peer does not reply in time, the socket is closed and
+        // SocketTimeoutException is thrown, because a peer that is only slow may still support them.
+        PeerConnection connection = null;
+        SocketTimeoutException timeoutException = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outputStream.writeInt(PeerConnectionPool.preamble);
+            outputStream.flush();
+
+            socket.setSoTimeout(1000);
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (inputStream.readInt() == PeerConnectionPool.preamble) {
+                socket.setSoTimeout(0);
+                connection = new PeerConnection(socket, inputStream, outputStream);
+            }
+        } catch (SocketTimeoutException e) {
+            timeoutException = e;
+        } catch (Exception ignored) { }
+
+        if (connection == null) {
+            ConnectionManager.fastCloseSocket(socket);
+            if (timeoutException != null) {
+                throw timeoutException;
+            }
+        } else {
+            PeerConnection readConnection = connection;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readConnection.readResponses();
+                }
+            }, "PeerConnection-" + hostNameOrIp + ":" + port).start();
+        }
+
+        return connection;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    int getNumberOfPendingRequests() {
+        return pendingRequests.size();
+    }
+
+    boolean isIdle(long idleThreshold) {
+        return pendingRequests.isEmpty() && lastActivityTimestamp < idleThreshold;
+    }
+
+    boolean send(Message message, MessageCallback messageCallback) {
+
+        // If this returns false, the request was not sent, and its callback has not been called. The callback of a
+        // request that was sent is always called exactly once: with the response, or with null if the connection
+        // closes or the request expires first.
+        boolean sent = false;
+        if (open && pendingRequests.size() < PeerConnectionPool.maximumRequestsInFlight) {
+            int requestIdentifier = nextRequestIdentifier.incrementAndGet();
+            pendingRequests.put(requestIdentifier, new PeerRequest(messageCallback));
+            if (!open) {
+                // The connection closed after the request was added. If the request is no longer pending, the close
+                // completed it.
+                sent = pendingRequests.remove(requestIdentifier) == null;
+            } else {
+                try {
+                    byte[] messageBytes = message.getBytesForTransmission();
+                    // A lock is used instead of a monitor so that a virtual thread blocked on the write does not pin
+                    // its carrier thread.
+                    writeLock.lock();
+                    try {
+                        outputStream.writeInt(requestIdentifier);
+                        outputStream.write(messageBytes);
+                        outputStream.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    lastActivityTimestamp = System.currentTimeMillis();
+                    sent = true;
+                } catch (Exception e) {
+                    // If the request is no longer pending, the failure closed the connection, which completed it.
+                    sent = pendingRequests.remove(requestIdentifier) == null;
+                    close();
+                }
+            }
+        }
+
+        return sent;
+    }
+
+    private void readResponses() {
+
+        try {
+            while (open) {
+                int requestIdentifier = inputStream.readInt();
+                int messageLength = inputStream.readInt();
+                if (messageLength < 4 || messageLength > Message.maximumMessageLength) {
+                    open = false;
+                } else {
+                    byte[] responseBytes = Message.readMessageBytes(inputStream, messageLength);
+                    lastActivityTimestamp = System.currentTimeMillis();
+
+                    PeerRequest request = pendingRequests.remove(requestIdentifier);
+                    if (request != null) {
+                        Message response = responseBytes.length == 0 ? null : Message.fromBytes(responseBytes,
+                                ipAddress, false);
+                        Message.deliverResponse(request.getMessageCallback(), response);
+                    }
+                }
+            }
+        } catch (Exception ignored) { }
+
+        close();
+    }
+
+    int expireRequests(long timestampThreshold) {
+
+        int numberExpired = 0;
+        for (Integer requestIdentifier : pendingRequests.keySet()) {
+            PeerRequest request = pendingRequests.get(requestIdentifier);
+            if (request != null && request.getTimestamp() < timestampThreshold &&
+                    pendingRequests.remove(requestIdentifier) != null) {
+                Message.deliverResponse(request.getMessageCallback(), null);
+                numberExpired++;
+            }
+        }
+
+        return numberExpired;
+    }
+
+    void close() {
+
+        open = false;
+        ConnectionManager.fastCloseSocket(socket);
+        expireRequests(Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,223 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.ThreadUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+public class PeerConnectionPool {
+
+    // This keeps long-lived TCP connections to peers, so requests to a peer do not each pay for a new connection.
+    // When persistent connections are enabled, every TCP fetch is offered to the pool first, from the fetch executor
+    // (see Message.fetchTcp()). One-shot connections are only used for peers that do not support persistent
+    // connections or are in a handshake backoff, when the pool is full, and when a connection already has the
+    // maximum number of requests in flight.
+    //
+    // A persistent connection starts with a preamble: a 4-byte value that is not a valid message length. A peer that
+    // supports persistent connections responds with the same preamble and then serves any number of requests on the
+    // connection, several at a time, matching responses to requests by identifier (see PeerConnection and
+    // PeerConnectionServer). A peer that does not support them reads the preamble as an invalid message length and
+    // closes the connection without responding. That peer is then sent one-shot requests, and it is not tried again
+    // for an hour. A peer that does not answer the preamble within the handshake timeout is not marked as
+    // unsupported, because it may only be slow; it is sent one-shot requests for a short backoff and then tried again.
+    //
+    // Connections with no requests in progress are closed after the idle timeout. Requests that do not receive
+    // responses within the request timeout are completed with null responses, as a one-shot request would be after
+    // its read timeout.
+    //
+    // Persistent connections, both outgoing and incoming, are enabled with the persistent_peer_connections
+    // preference.
+
+    static final int preamble = 0x4e5a5043;  // larger than the maximum message length, so older peers reject it
+    static final int maximumRequestsInFlight = 32;
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("persistent_peer_connections", false);
+    private static final long idleTimeout = PreferencesUtil.getLong("persistent_connection_idle_timeout", 30000L);
+    private static final int maximumConnections = PreferencesUtil.getInt("persistent_connection_maximum", 500);
+    private static final long requestTimeout = 5000L;
+    private static final long unsupportedRetryInterval = 1000L * 60L * 60L;
+    private static final long handshakeTimeoutRetryInterval = 30000L;
+    private static final long maintenanceInterval = 500L;
+
+    private static final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
+    private static final Map<String, ReentrantLock> openLocks = new ConcurrentHashMap<>();
+    private static final Map<String, Long> unsupportedPeers = new ConcurrentHashMap<>();
+    private static final Map<String, Long> handshakeTimeoutPeers = new ConcurrentHashMap<>();
+    private static final AtomicLong handshakeTimeoutCount = new AtomicLong(0L);
+    private static final AtomicBoolean maintenanceStarted = new AtomicBoolean(false);
+    private static final AtomicLong expiredRequestCount = new AtomicLong(0L);
+    private static final AtomicLong oneShotFallbackCount = new AtomicLong(0L);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public static boolean fetch(String hostNameOrIp, int port, Message message, MessageCallback messageCallback) {
+
+        // If this returns true, the request has been handled, and its callback will be called. If it returns false,
+        // the request should be sent on a one-shot connection.
+        boolean handled = false;
+        if (enabled) {
+            startMaintenance();
+
+            String key = hostNameOrIp + ":" + port;
+            try {
+                PeerConnection connection = connectionForPeer(key, hostNameOrIp, port);
+                handled = connection != null && connection.send(message, messageCallback);
+            } catch (Exception e) {
+                // The connection could not be opened. This is handled as it would be for a one-shot request.
+                NodeManager.markFailedConnection(hostNameOrIp);
+                Message.deliverResponse(messageCallback, null);
+                handled = true;
+            }
+
+            if (!handled) {
+                oneShotFallbackCount.incrementAndGet();
+            }
+        }
+
+        return handled;
+    }
+
+    private static PeerConnection connectionForPeer(String key, String hostNameOrIp, int port) throws Exception {
+
+        PeerConnection connection = connections.get(key);
+        if (connection == null || !connection.isOpen()) {
+            ReentrantLock lock = openLocks.computeIfAbsent(key, new Function<String, ReentrantLock>() {
+                @Override
+                public ReentrantLock apply(String key) {
+                    return new ReentrantLock();
+                }
+            });
+
+            // Only one thread opens a connection to a peer at a time. Other threads wait and use the connection
+            // that it opened. A lock is used instead of a monitor so that a virtual thread waiting for a connection
+            // to open does not pin its carrier thread.
+            lock.lock();
+            try {
+                connection = connections.get(key);
+                if (connection == null || !connection.isOpen()) {
+                    connection = null;
+                    long now = System.currentTimeMillis();
+                    if (!isDeferred(unsupportedPeers, key, now - unsupportedRetryInterval) &&
+                            !isDeferred(handshakeTimeoutPeers, key, now - handshakeTimeoutRetryInterval) &&
+                            connections.size() < maximumConnections) {
+                        Socket socket = PeerConnection.connect(hostNameOrIp, port);
+                        NodeManager.markSuccessfulConnection(hostNameOrIp);
+                        try {
+                            connection = PeerConnection.handshake(socket, hostNameOrIp, port);
+                            handshakeTimeoutPeers.remove(key);
+                            if (connection == null) {
+                                unsupportedPeers.put(key, System.currentTimeMillis());
+                            } else {
+                                unsupportedPeers.remove(key);
+                                connections.put(key, connection);
+                            }
+                        } catch (SocketTimeoutException e) {
+                            handshakeTimeoutCount.incrementAndGet();
+                            handshakeTimeoutPeers.put(key, System.currentTimeMillis());
+                        }
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        return connection;
+    }
+
+    private static boolean isDeferred(Map<String, Long> peers, String key, long threshold) {
+
+        Long timestamp = peers.get(key);
+        return timestamp != null && timestamp >= threshold;
+    }
+
+    private static void startMaintenance() {
+
+        if (!maintenanceStarted.getAndSet(true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!UpdateUtil.shouldTerminate()) {
+                        try {
+                            performMaintenance();
+                        } catch (Exception e) {
+                            System.out.println("exception in peer connection pool maintenance: " +
+                                    PrintUtil.printException(e));
+                        }
+                        ThreadUtil.sleep(maintenanceInterval);
+                    }
+
+                    closeAll();
+                }
+            }, "PeerConnectionPool-maintenance").start();
+        }
+    }
+
+    private static void performMaintenance() {
+
+        // Expire requests that have waited too long, close connections that have been idle, and remove connections
+        // that have closed.
+        long now = System.currentTimeMillis();
+        for (String key : connections.keySet()) {
+            PeerConnection connection = connections.get(key);
+            if (connection != null) {
+                expiredRequestCount.addAndGet(connection.expireRequests(now - requestTimeout));
+                if (connection.isIdle(now - idleTimeout)) {
+                    connection.close();
+                }
+
+                if (!connection.isOpen()) {
+                    connections.remove(key, connection);
+                }
+            }
+        }
+
+        removeExpired(unsupportedPeers, now - unsupportedRetryInterval);
+        removeExpired(handshakeTimeoutPeers, now - handshakeTimeoutRetryInterval);
+    }
+
+    private static void removeExpired(Map<String, Long> peers, long threshold) {
+
+        for (String key : peers.keySet()) {
+            Long timestamp = peers.get(key);
+            if (timestamp != null && timestamp < threshold) {
+                peers.remove(key);
+            }
+        }
+    }
+
+    private static void closeAll() {
+
+        for (PeerConnection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    public static String poolInformation() {
+
+        int requestsInFlight = 0;
+        for (PeerConnection connection : connections.values()) {
+            requestsInFlight += connection.getNumberOfPendingRequests();
+        }
+
+        return connections.size() + "/" + requestsInFlight + "/" + PeerConnectionServer.getNumberOfConnections() +
+                "/" + unsupportedPeers.size() + "/" + handshakeTimeoutPeers.size() + "/" +
+                handshakeTimeoutCount.get() + "/" + oneShotFallbackCount.get() + "/" + expiredRequestCount.get();
+    }
+}
@@ -0,0 +1,116 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class PeerConnectionServer {
+
+    // This serves an incoming persistent connection after its preamble has been read by the mesh listener. The
+    // calling thread reads requests from the connection, and each request is processed on a shared pool of workers,
+    // so several requests from one connection can be in progress at once. Each response is written with the
+    // identifier of its request as soon as it is ready. When the limit of requests in progress for a connection is
+    // reached, reading stops until one finishes. If the worker queue is full, the request is answered with no
+    // response.
+    //
+    // The connection is closed if it is idle for twice the idle timeout of outgoing connections, so an idle
+    // connection is normally closed by the peer that opened it.
+
+    private static final int workerThreadCount = 16;
+    private static final int workerQueueSize = 1000;
+
+    private static final AtomicInteger numberOfConnections = new AtomicInteger(0);
+    private static final ThreadPoolExecutor workers = new ThreadPoolExecutor(workerThreadCount, workerThreadCount,
+            60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(workerQueueSize), new ThreadFactory() {
+        private final AtomicInteger threadIndex = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PeerConnectionServer-worker-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static int getNumberOfConnections() {
+        return numberOfConnections.get();
+    }
+
+    static void serve(Socket socket, byte[] ipAddress) {
+
+        // The socket is closed in this method.
+        numberOfConnections.incrementAndGet();
+        Semaphore requestsInProgress = new Semaphore(PeerConnectionPool.maximumRequestsInFlight);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, PeerConnectionPool.getIdleTimeout() * 2L));
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            outputStream.writeInt(PeerConnectionPool.preamble);
+            outputStream.flush();
+
+            DataInputStream inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            boolean open = true;
+            while (open && !UpdateUtil.shouldTerminate() && !BlacklistManager.inBlacklist(ipAddress)) {
+                int requestIdentifier = inputStream.readInt();
+                int messageLength = inputStream.readInt();
+                if (messageLength <= 4 || messageLength > Message.maximumMessageLength) {
+                    open = false;
+                } else {
+                    byte[] messageBytes = Message.readMessageBytes(inputStream, messageLength);
+                    requestsInProgress.acquire();
+                    try {
+                        workers.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    Message message = Message.fromBytes(messageBytes, ipAddress, false);
+                                    Message response = message == null ? null : MeshListener.tcpResponse(message);
+                                    writeResponse(socket, outputStream, requestIdentifier, response);
+                                } finally {
+                                    requestsInProgress.release();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        writeResponse(socket, outputStream, requestIdentifier, null);
+                        requestsInProgress.release();
+                    }
+                }
+            }
+        } catch (Exception ignored) { }
+
+        // Allow requests in progress to finish before closing the connection.
+        try {
+            requestsInProgress.tryAcquire(PeerConnectionPool.maximumRequestsInFlight, 1L, TimeUnit.SECONDS);
+        } catch (Exception ignored) { }
+
+        ConnectionManager.slowCloseSocket(socket);
+        numberOfConnections.decrementAndGet();
+    }
+
+    private static void writeResponse(Socket socket, DataOutputStream outputStream, int requestIdentifier,
+                                      Message response) {
+
+        try {
+            byte[] responseBytes = response == null ? null : response.getBytesForTransmission();
+            synchronized (outputStream) {
+                outputStream.writeInt(requestIdentifier);
+                if (responseBytes == null) {
+                    outputStream.writeInt(4);
+                } else {
+                    outputStream.write(responseBytes);
+                }
+                outputStream.flush();
+            }
+        } catch (Exception e) {
+            // The connection has failed. Closing the socket ends the reading loop.
+            ConnectionManager.fastCloseSocket(socket);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package co.nyzo.verifier;
+
+class PeerRequest {
+
+    private final MessageCallback messageCallback;
+    private final long timestamp;
+
+    PeerRequest(MessageCallback messageCallback) {
+        this.messageCallback = messageCallback;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    MessageCallback getMessageCallback() {
+        return messageCallback;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+}
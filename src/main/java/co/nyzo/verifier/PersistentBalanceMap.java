@@ -0,0 +1,269 @@
+package co.nyzo.verifier;
+
+import java.util.*;
+
+public class PersistentBalanceMap implements Iterable<BalanceListItem> {
+
+    // This is an immutable map of balance-list items, sorted on identifier in the same order as the serialized balance
+    // list. It is a balanced binary tree (AVL) with path copying: an update copies only the nodes on the path from the
+    // root to the changed item, O(log n), and all other nodes are shared with the map it was derived from. This allows
+    // the balance list for each block, and for each competing block at the same height, to be derived from the
+    // previous list without copying the accounts that did not change.
+
+    private static final PersistentBalanceMap empty = new PersistentBalanceMap(null);
+
+    private final BalanceMapNode root;
+
+    private PersistentBalanceMap(BalanceMapNode root) {
+        this.root = root;
+    }
+
+    public static PersistentBalanceMap empty() {
+        return empty;
+    }
+
+    public static PersistentBalanceMap fromSortedItems(List<BalanceListItem> items) {
+
+        // The items must be sorted on identifier with no duplicates. The tree is built directly in O(n).
+        BalanceListItem[] array = items.toArray(new BalanceListItem[items.size()]);
+        return new PersistentBalanceMap(build(array, 0, array.length));
+    }
+
+    private static BalanceMapNode build(BalanceListItem[] items, int start, int end) {
+
+        BalanceMapNode node = null;
+        if (start < end) {
+            int middle = (start + end) >>> 1;
+            node = new BalanceMapNode(items[middle], build(items, start, middle), build(items, middle + 1, end));
+        }
+
+        return node;
+    }
+
+    public int size() {
+        return BalanceMapNode.size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public long balanceSum() {
+        return BalanceMapNode.balanceSum(root);
+    }
+
+    public BalanceListItem get(byte[] identifier) {
+
+        BalanceMapNode node = root;
+        BalanceListItem result = null;
+        while (node != null && result == null) {
+            int comparison = compare(identifier, node.item.getIdentifier());
+            if (comparison < 0) {
+                node = node.left;
+            } else if (comparison > 0) {
+                node = node.right;
+            } else {
+                result = node.item;
+            }
+        }
+
+        return result;
+    }
+
+    public BalanceListItem getAtIndex(int index) {
+
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+        }
+
+        BalanceMapNode node = root;
+        BalanceListItem result = null;
+        while (result == null) {
+            int leftSize = BalanceMapNode.size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            } else {
+                result = node.item;
+            }
+        }
+
+        return result;
+    }
+
+    public PersistentBalanceMap put(BalanceListItem item) {
+        return new PersistentBalanceMap(put(root, item));
+    }
+
+    public PersistentBalanceMap remove(byte[] identifier) {
+
+        BalanceMapNode newRoot = remove(root, identifier);
+        return newRoot == root ? this : new PersistentBalanceMap(newRoot);
+    }
+
+    private static BalanceMapNode put(BalanceMapNode node, BalanceListItem item) {
+
+        BalanceMapNode result;
+        if (node == null) {
+            result = new BalanceMapNode(item, null, null);
+        } else {
+            int comparison = compare(item.getIdentifier(), node.item.getIdentifier());
+            if (comparison < 0) {
+                result = balance(node.item, put(node.left, item), node.right);
+            } else if (comparison > 0) {
+                result = balance(node.item, node.left, put(node.right, item));
+            } else {
+                result = new BalanceMapNode(item, node.left, node.right);
+            }
+        }
+
+        return result;
+    }
+
+    private static BalanceMapNode remove(BalanceMapNode node, byte[] identifier) {
+
+        BalanceMapNode result = node;
+        if (node != null) {
+            int comparison = compare(identifier, node.item.getIdentifier());
+            if (comparison < 0) {
+                BalanceMapNode left = remove(node.left, identifier);
+                result = left == node.left ? node : balance(node.item, left, node.right);
+            } else if (comparison > 0) {
+                BalanceMapNode right = remove(node.right, identifier);
+                result = right == node.right ? node : balance(node.item, node.left, right);
+            } else if (node.left == null) {
+                result = node.right;
+            } else if (node.right == null) {
+                result = node.left;
+            } else {
+                // Replace this node with its successor.
+                BalanceMapNode successor = node.right;
+                while (successor.left != null) {
+                    successor = successor.left;
+                }
+                result = balance(successor.item, node.left, remove(node.right, successor.item.getIdentifier()));
+            }
+        }
+
+        return result;
+    }
+
+    private static BalanceMapNode balance(BalanceListItem item, BalanceMapNode left, BalanceMapNode right) {
+
+        int leftHeight = BalanceMapNode.height(left);
+        int rightHeight = BalanceMapNode.height(right);
+        BalanceMapNode result;
+        if (leftHeight > rightHeight + 1) {
+            if (BalanceMapNode.height(left.left) >= BalanceMapNode.height(left.right)) {
+                result = new BalanceMapNode(left.item, left.left, new BalanceMapNode(item, left.right, right));
+            } else {
+                result = new BalanceMapNode(left.right.item, new BalanceMapNode(left.item, left.left, left.right.left),
+                        new BalanceMapNode(item, left.right.right, right));
+            }
+        } else if (rightHeight > leftHeight + 1) {
+            if (BalanceMapNode.height(right.right) >= BalanceMapNode.height(right.left)) {
+                result = new BalanceMapNode(right.item, new BalanceMapNode(item, left, right.left), right.right);
+            } else {
+                result = new BalanceMapNode(right.left.item, new BalanceMapNode(item, left, right.left.left),
+                        new BalanceMapNode(right.item, right.left.right, right.right));
+            }
+        } else {
+            result = new BalanceMapNode(item, left, right);
+        }
+
+        return result;
+    }
+
+    public List<BalanceListItem> itemsWithFeeDue(long listHeight) {
+
+        // This returns, in identifier order, all items that are not exempt from fees and whose fee counter has reached
+        // zero at the specified list height. Subtrees with no such items are skipped, so the cost is proportional to
+        // the number of items returned, times the height of the tree.
+        List<BalanceListItem> result = new ArrayList<>();
+        addItemsWithFeeDue(root, listHeight, result);
+        return result;
+    }
+
+    private static void addItemsWithFeeDue(BalanceMapNode node, long listHeight, List<BalanceListItem> result) {
+
+        if (node != null && node.minimumFeeHeight <= listHeight) {
+            addItemsWithFeeDue(node.left, listHeight, result);
+            if (!node.item.isFeeExempt() && node.item.getFeeHeight() <= listHeight) {
+                result.add(node.item);
+            }
+            addItemsWithFeeDue(node.right, listHeight, result);
+        }
+    }
+
+    public static int compare(byte[] identifier1, byte[] identifier2) {
+
+        // Identifiers are compared as unsigned bytes, matching the order of the serialized balance list.
+        int result = 0;
+        for (int i = 0; i < FieldByteSize.identifier && result == 0; i++) {
+            result = (identifier1[i] & 0xff) - (identifier2[i] & 0xff);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Iterator<BalanceListItem> iterator() {
+
+        return new Iterator<BalanceListItem>() {
+
+            // The stack holds the path of nodes whose items have not yet been returned, with the next item on top.
+            private final Deque<BalanceMapNode> stack = new ArrayDeque<>();
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(BalanceMapNode node) {
+                while (node != null) {
+                    stack.push(node);
+                    node = node.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public BalanceListItem next() {
+
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+
+                BalanceMapNode node = stack.pop();
+                pushLeft(node.right);
+                return node.item;
+            }
+        };
+    }
+
+    public List<BalanceListItem> asList() {
+
+        // This is a read-only view of the items in identifier order. Iteration is sequential; indexed access is
+        // O(log n).
+        return new AbstractList<BalanceListItem>() {
+            @Override
+            public BalanceListItem get(int index) {
+                return getAtIndex(index);
+            }
+
+            @Override
+            public int size() {
+                return PersistentBalanceMap.this.size();
+            }
+
+            @Override
+            public Iterator<BalanceListItem> iterator() {
+                return PersistentBalanceMap.this.iterator();
+            }
+        };
+    }
+}
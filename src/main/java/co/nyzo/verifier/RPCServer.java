@@ -6,6 +6,7 @@ import co.nyzo.verifier.util.SignatureUtil;
 import co.nyzo.verifier.util.PrintUtil;
 
 import co.nyzo.verifier.messages.*;
+import co.nyzo.verifier.nyzoString.NyzoString;
 import co.nyzo.verifier.nyzoString.NyzoStringEncoder;
 import co.nyzo.verifier.nyzoString.NyzoStringPrivateSeed;
 import co.nyzo.verifier.nyzoString.NyzoStringPublicIdentifier;
@@ -67,6 +68,7 @@ public class RPCServer
             register(new CycleHandler());
             register(new BlockHandler());
             register(new BalanceHandler());
+            register(new BalancesHandler());
             register(new BroadcastHandler());
             register(new AllTransactionsHandler());	
             register(new GetTransactionsHandler());
@@ -153,6 +155,23 @@ public class RPCServer
             return new JSONRPC2Response(reply, req.getID());
         }
     }
+    private static byte[] identifierForParameters(Object identifierParameter, Object nyzoStringParameter)
+    {
+        // Identifiers may be provided as hexadecimal or as Nyzo strings. An identifier that cannot be interpreted is
+        // returned as an empty array, which matches no account.
+        byte[] identifier = new byte[0];
+        if (identifierParameter instanceof String) {
+            identifier = ByteUtil.byteArrayFromHexString((String) identifierParameter, FieldByteSize.identifier);
+        } else if (nyzoStringParameter instanceof String) {
+            NyzoString nyzoString = NyzoStringEncoder.decode((String) nyzoStringParameter);
+            if (nyzoString instanceof NyzoStringPublicIdentifier) {
+                identifier = nyzoString.getBytes();
+            }
+        }
+
+        return identifier;
+    }
+
     public class BalanceHandler implements RequestHandler
     {
         public String[] handledRequests() 
@@ -163,31 +182,54 @@ public class RPCServer
         public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) 
         {
             JSONObject reply = new JSONObject();
-            byte[] identifier = new byte[0];
-            String identifierGet = (String) req.getNamedParams().get("identifier");
-            String nyzoStringIdGet= (String) req.getNamedParams().get("nyzo_string");
-
-            if (identifierGet != null){
-                identifier = ByteUtil.byteArrayFromHexString(identifierGet, FieldByteSize.identifier);
-            }else if (nyzoStringIdGet != null){
-                identifier = NyzoStringEncoder.decode(nyzoStringIdGet).getBytes();
-            }
-            
-            long height = BlockManager.getFrozenEdgeHeight();
-            Block block = BlockManager.frozenBlockForHeight(height);
-            BalanceList bl = BalanceListManager.balanceListForBlock(block);
-            List<BalanceListItem> items = bl.getItems();
-            reply.put("list_length", items.size());
+            byte[] identifier = identifierForParameters(req.getNamedParams().get("identifier"),
+                    req.getNamedParams().get("nyzo_string"));
+
+            // The balance is found with an O(log n) lookup in the frozen-edge balance list.
+            BalanceList bl = BalanceListManager.getFrozenEdgeList();
             long balance = 0;
-            for (BalanceListItem item : items) {
-                if (Arrays.equals(item.getIdentifier(), identifier)) {
-                   balance = item.getBalance();
-                }
+            if (bl != null) {
+                reply.put("list_length", bl.getNumberOfItems());
+                balance = bl.balanceForIdentifier(identifier);
             }
             reply.put("balance", balance);
             return new JSONRPC2Response(reply, req.getID());
         }
     }
+    public class BalancesHandler implements RequestHandler
+    {
+        public String[] handledRequests() 
+        {
+            return new String[]{"balances"};
+        }
+
+        public JSONRPC2Response process(JSONRPC2Request req, MessageContext ctx) 
+        {
+            // This resolves many identifiers in one call. The identifiers are provided as an array in the
+            // "identifiers" parameter, each as hexadecimal or as a Nyzo string. All balances are read from the same
+            // frozen-edge balance list, so they are consistent with each other and with the reported height.
+            JSONObject reply = new JSONObject();
+            BalanceList bl = BalanceListManager.getFrozenEdgeList();
+            Object identifiersParameter = req.getNamedParams().get("identifiers");
+            JSONArray balances = new JSONArray();
+            if (bl != null && identifiersParameter instanceof List) {
+                reply.put("height", bl.getBlockHeight());
+                reply.put("list_length", bl.getNumberOfItems());
+                for (Object identifierParameter : (List<?>) identifiersParameter) {
+                    String identifierString = identifierParameter instanceof String ? (String) identifierParameter : "";
+                    byte[] identifier = identifierString.startsWith("id__") ?
+                            identifierForParameters(null, identifierString) :
+                            identifierForParameters(identifierString, null);
+                    JSONObject entry = new JSONObject();
+                    entry.put("identifier", identifierString);
+                    entry.put("balance", bl.balanceForIdentifier(identifier));
+                    balances.add(entry);
+                }
+            }
+            reply.put("balances", balances);
+            return new JSONRPC2Response(reply, req.getID());
+        }
+    }
     public class AllTransactionsHandler implements RequestHandler
     {
         public String[] handledRequests() 
@@ -423,7 +465,7 @@ public class RPCServer
 
             long transactionHeight = BlockManager.heightForTimestamp(tx.getTimestamp());
 
-            Block transactionBlock = BlockManager.frozenBlockForHeight(transactionHeight);
+            Block transactionBlock = HistoricalBlockService.blockForHeight(transactionHeight);
             if (transactionBlock == null) {
                 reply.put("message", "unable to determine whether transaction was incorporated into the chain");
                 reply.put("status", "unknown");
@@ -489,7 +531,7 @@ public class RPCServer
         {
             JSONObject reply = new JSONObject();
             int height = (int)(long) req.getNamedParams().get("height");
-            Block block = BlockManager.frozenBlockForHeight(height);
+            Block block = HistoricalBlockService.blockForHeight(height);
             if (block == null) {
                 return new JSONRPC2Response(new JSONRPC2Error(500, "unknown block"), req.getID());
             }
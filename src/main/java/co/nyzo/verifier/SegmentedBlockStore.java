@@ -0,0 +1,384 @@
+package co.nyzo.verifier;
+
+import co.nyzo.verifier.util.LogUtil;
+import co.nyzo.verifier.util.PreferencesUtil;
+import co.nyzo.verifier.util.PrintUtil;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class SegmentedBlockStore {
+
+    // This is an append-only store for frozen blocks. Instead of one file per block, which must later be read again,
+    // consolidated, and deleted, blocks are appended to segment files that each cover a fixed range of heights, and
+    // each segment has a dense, memory-mapped height-to-offset index. A balance list is stored with the first block of
+    // each interval of balanceListInterval heights and with any block that does not follow a stored block; other
+    // balance lists are derived from the nearest stored list, as they are for consolidated files.
+    //
+    // The store is enabled with the segmented_block_store preference. When it is enabled, frozen blocks are written
+    // only to the store, and reads fall back to individual and consolidated files for heights that are not in the
+    // store. Existing files can be copied into the store by running this class (see main()).
+
+    public static final File segmentDirectory = new File(BlockManager.blockRootDirectory, "segments");
+
+    private static final boolean enabled = PreferencesUtil.getBoolean("segmented_block_store", false);
+    private static final long blocksPerSegment = 10000L;
+    private static final long balanceListInterval = BlockManager.blocksPerFile;
+    private static final int maximumOpenSegments = PreferencesUtil.getInt("segmented_block_store_open_segments", 16);
+
+    // Segments are kept open in access order, and the least-recently-used segment is closed when too many are open.
+    // The map has its own lock, which is only held to find or open a segment, so lookups never wait for appends or
+    // forces; those are synchronized on each segment. Writes are serialized by the write lock, so a height is only
+    // written once.
+    private static final Map<Long, BlockStoreSegment> openSegments = new LinkedHashMap<>(16, 0.75f, true);
+    private static final Object segmentLock = new Object();
+    private static final Object writeLock = new Object();
+
+    public static void main(String[] args) {
+
+        // This copies all individual and consolidated block files into the store. The original files are not changed.
+        // The verifier should be stopped while this runs.
+        migrate();
+        closeAll();
+        UpdateUtil.terminate();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static File dataFileForSegment(long segmentIndex) {
+        return new File(segmentDirectory, String.format("s_%06d.nyzoblocks", segmentIndex));
+    }
+
+    public static File indexFileForSegment(long segmentIndex) {
+        return new File(segmentDirectory, String.format("s_%06d.nyzoindex", segmentIndex));
+    }
+
+    private static BlockStoreSegment segmentForHeight(long height, boolean create) {
+
+        // The evicted segment is forced and closed after the lock is released, because both wait for any append or
+        // force in progress on that segment.
+        long segmentIndex = height / blocksPerSegment;
+        BlockStoreSegment segment;
+        BlockStoreSegment evictedSegment = null;
+        synchronized (segmentLock) {
+            segment = openSegments.get(segmentIndex);
+            if (segment == null && height >= 0 && (create || dataFileForSegment(segmentIndex).exists())) {
+                try {
+                    segmentDirectory.mkdirs();
+                    segment = new BlockStoreSegment(dataFileForSegment(segmentIndex),
+                            indexFileForSegment(segmentIndex), segmentIndex * blocksPerSegment,
+                            (int) blocksPerSegment);
+                    openSegments.put(segmentIndex, segment);
+
+                    if (openSegments.size() > maximumOpenSegments) {
+                        Iterator<BlockStoreSegment> iterator = openSegments.values().iterator();
+                        evictedSegment = iterator.next();
+                        iterator.remove();
+                    }
+                } catch (Exception e) {
+                    LogUtil.println("unable to open block store segment " + segmentIndex + ": " +
+                            PrintUtil.printException(e));
+                }
+            }
+        }
+
+        if (evictedSegment != null) {
+            try {
+                evictedSegment.force();
+            } catch (Exception ignored) { }
+            evictedSegment.close();
+        }
+
+        return segment;
+    }
+
+    private static List<BlockStoreSegment> openSegmentList() {
+
+        synchronized (segmentLock) {
+            return new ArrayList<>(openSegments.values());
+        }
+    }
+
+    public static boolean contains(long height) {
+
+        BlockStoreSegment segment = segmentForHeight(height, false);
+        return segment != null && segment.contains(height);
+    }
+
+    public static boolean writeBlock(Block block, BalanceList balanceList) {
+
+        // A height is only written once. The balance list is required for the first block of each interval and for
+        // blocks that do not follow a stored block; it is stored only in those cases. If the segment is closed by
+        // eviction between lookup and append, the segment is reopened and the append is attempted again.
+        long height = block.getBlockHeight();
+        boolean successful;
+        synchronized (writeLock) {
+            successful = contains(height);
+            if (!successful) {
+                boolean storeBalanceList = height % balanceListInterval == 0 || !contains(height - 1L);
+                if (!storeBalanceList || balanceList != null) {
+                    boolean retry = true;
+                    for (int attempt = 0; attempt < 2 && retry; attempt++) {
+                        retry = false;
+                        BlockStoreSegment segment = segmentForHeight(height, true);
+                        if (segment != null) {
+                            try {
+                                segment.append(height, block.getBytes(),
+                                        storeBalanceList ? balanceList.getBytes() : null);
+                                successful = true;
+                            } catch (ClosedChannelException e) {
+                                retry = true;
+                            } catch (Exception e) {
+                                LogUtil.println("unable to write block " + height + " to block store: " +
+                                        PrintUtil.printException(e));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return successful;
+    }
+
+    private static ByteBuffer[] read(long height, boolean includeBalanceList, BlockStoreSegment[] segmentHolder) {
+
+        // The segment holder keeps the segment used by the previous read, so a series of reads in one segment looks
+        // up the segment only once. A segment may be closed by another thread between lookup and read. In that case,
+        // the segment is reopened and the read is attempted again.
+        ByteBuffer[] result = null;
+        boolean retry = true;
+        for (int attempt = 0; attempt < 2 && retry; attempt++) {
+            retry = false;
+            BlockStoreSegment segment = segmentHolder[0];
+            if (segment == null || height < segment.getStartHeight() ||
+                    height >= segment.getStartHeight() + blocksPerSegment) {
+                segment = segmentForHeight(height, false);
+                segmentHolder[0] = segment;
+            }
+            if (segment != null) {
+                try {
+                    result = segment.read(height, includeBalanceList);
+                } catch (ClosedChannelException e) {
+                    segmentHolder[0] = null;
+                    retry = true;
+                } catch (Exception ignored) { }
+            }
+        }
+
+        return result;
+    }
+
+    public static Block blockForHeight(long height) {
+        return blockForHeight(height, new BlockStoreSegment[1]);
+    }
+
+    private static Block blockForHeight(long height, BlockStoreSegment[] segmentHolder) {
+
+        Block block = null;
+        ByteBuffer[] buffers = read(height, false, segmentHolder);
+        if (buffers != null) {
+            try {
+                block = Block.fromByteBuffer(buffers[0], false);
+            } catch (Exception ignored) { }
+        }
+
+        return block;
+    }
+
+    public static BalanceList balanceListForHeight(long height) {
+
+        // Step back to the nearest stored balance list, then derive forward to the requested height. Each step of the
+        // derivation uses the block at that height, and the result is checked against the balance-list hash of the
+        // block. The segment is looked up once for all of these reads.
+        BalanceList balanceList = null;
+        BlockStoreSegment[] segmentHolder = new BlockStoreSegment[1];
+        try {
+            long listHeight = height;
+            ByteBuffer[] buffers = read(listHeight, true, segmentHolder);
+            while (buffers != null && buffers[1] == null && height - listHeight < balanceListInterval) {
+                listHeight--;
+                buffers = read(listHeight, true, segmentHolder);
+            }
+
+            if (buffers != null && buffers[1] != null) {
+                Block block = Block.fromByteBuffer(buffers[0], false);
+                balanceList = BalanceList.fromByteBuffer(buffers[1]);
+                for (long derivationHeight = listHeight + 1; derivationHeight <= height && balanceList != null;
+                     derivationHeight++) {
+                    Block nextBlock = blockForHeight(derivationHeight, segmentHolder);
+                    balanceList = nextBlock == null ? null : Block.balanceListForNextBlock(block, balanceList,
+                            nextBlock.getTransactions(), nextBlock.getVerifierIdentifier(),
+                            nextBlock.getBlockchainVersion());
+                    block = nextBlock;
+                }
+
+                if (balanceList != null && !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                        block.getBalanceListHash())) {
+                    System.err.println("incorrect hash for balance list from block store at height " + height);
+                    balanceList = null;
+                }
+            }
+        } catch (Exception e) {
+            LogUtil.println("unable to load balance list " + height + " from block store: " +
+                    PrintUtil.printException(e));
+            balanceList = null;
+        }
+
+        return balanceList;
+    }
+
+    public static long highestHeight() {
+
+        // Segment files are named by index, so the highest segment is found from the file names.
+        long height = -1L;
+        File[] files = segmentDirectory.listFiles();
+        if (files != null) {
+            List<Long> segmentIndices = new ArrayList<>();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("s_") && name.endsWith(".nyzoblocks")) {
+                    try {
+                        segmentIndices.add(Long.parseLong(name.substring(2, name.indexOf('.'))));
+                    } catch (Exception ignored) { }
+                }
+            }
+            Collections.sort(segmentIndices, Collections.<Long>reverseOrder());
+
+            for (int i = 0; i < segmentIndices.size() && height < 0; i++) {
+                BlockStoreSegment segment = segmentForHeight(segmentIndices.get(i) * blocksPerSegment, false);
+                if (segment != null) {
+                    height = segment.highestHeight();
+                }
+            }
+        }
+
+        return height;
+    }
+
+    public static void force() {
+
+        // Written segments are open, as they were recently used, so forcing the open segments forces all writes. The
+        // segments are forced outside the segment lock, so lookups do not wait for the disk.
+        for (BlockStoreSegment segment : openSegmentList()) {
+            try {
+                segment.force();
+            } catch (Exception e) {
+                LogUtil.println("unable to force block store segment: " + PrintUtil.printException(e));
+            }
+        }
+    }
+
+    public static void closeAll() {
+
+        List<BlockStoreSegment> segments;
+        synchronized (segmentLock) {
+            segments = new ArrayList<>(openSegments.values());
+            openSegments.clear();
+        }
+
+        for (BlockStoreSegment segment : segments) {
+            try {
+                segment.force();
+            } catch (Exception ignored) { }
+            segment.close();
+        }
+    }
+
+    public static void migrate() {
+
+        // Consolidated files are migrated first, in height order, so that the individual files, which are newer, can
+        // then fill any gaps. Heights already in the store are skipped.
+        List<File> consolidatedFiles = new ArrayList<>();
+        File[] directories = BlockManager.blockRootDirectory.listFiles();
+        if (directories != null) {
+            for (File directory : directories) {
+                File[] files = directory.isDirectory() ? directory.listFiles() : null;
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().matches("\\d+\\.nyzoblock")) {
+                            consolidatedFiles.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        List<File> individualFiles = new ArrayList<>();
+        File[] files = BlockManager.individualBlockDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().matches("i_\\d+\\.nyzoblock")) {
+                    individualFiles.add(file);
+                }
+            }
+        }
+
+        Comparator<File> nameComparator = new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return file1.getName().compareTo(file2.getName());
+            }
+        };
+        Collections.sort(consolidatedFiles, nameComparator);
+        Collections.sort(individualFiles, nameComparator);
+
+        int numberOfBlocks = 0;
+        for (File file : consolidatedFiles) {
+            numberOfBlocks += migrateFile(file);
+        }
+        for (File file : individualFiles) {
+            numberOfBlocks += migrateFile(file);
+        }
+
+        LogUtil.println("migrated " + numberOfBlocks + " blocks from " + consolidatedFiles.size() +
+                " consolidated files and " + individualFiles.size() + " individual files to the block store");
+    }
+
+    private static int migrateFile(File file) {
+
+        // Blocks in a file are stored in height order. A balance list follows the first block and any block after a
+        // gap; the others are derived, and each derived list is checked against the block.
+        int numberOfBlocks = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file.getAbsolutePath())));
+            int numberOfBlocksInFile = buffer.getShort();
+            Block previousBlock = null;
+            BalanceList previousBalanceList = null;
+            for (int i = 0; i < numberOfBlocksInFile; i++) {
+                Block block = Block.fromByteBuffer(buffer, false);
+                BalanceList balanceList;
+                if (previousBlock != null && block.getBlockHeight() == previousBlock.getBlockHeight() + 1L) {
+                    balanceList = Block.balanceListForNextBlock(previousBlock, previousBalanceList,
+                            block.getTransactions(), block.getVerifierIdentifier(), block.getBlockchainVersion());
+                } else {
+                    balanceList = BalanceList.fromByteBuffer(buffer);
+                }
+
+                if (balanceList == null || !ByteUtil.arraysAreEqual(balanceList.getHash(),
+                        block.getBalanceListHash())) {
+                    throw new RuntimeException("balance list hash does not match for block " +
+                            block.getBlockHeight());
+                }
+
+                if (!contains(block.getBlockHeight()) && writeBlock(block, balanceList)) {
+                    numberOfBlocks++;
+                }
+
+                previousBlock = block;
+                previousBalanceList = balanceList;
+            }
+        } catch (Exception e) {
+            LogUtil.println("problem migrating block file " + file.getName() + ": " + PrintUtil.printException(e));
+        }
+
+        return numberOfBlocks;
+    }
+}
@@ -6,6 +6,7 @@ import co.nyzo.verifier.util.SignatureUtil;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Transaction implements MessageObject {
 
@@ -63,6 +64,13 @@ public class Transaction implements MessageObject {
 
     private SignatureState signatureState = SignatureState.Undetermined;
 
+    // The serialized forms are computed at most once. All fields that contribute to the signing bytes are set before a
+    // transaction is signed or verified, and they do not change afterward. Cycle transactions accumulate signatures
+    // after construction, so their serialized form for storage and transmission is not cached.
+    private volatile byte[] bytesForSigning = null;
+    private volatile byte[] bytesForTransmission = null;
+    private static final LongAdder bytesCacheHitCount = new LongAdder();
+
     public static final Comparator<ByteBuffer> identifierComparator = new Comparator<ByteBuffer>() {
         @Override
         public int compare(ByteBuffer buffer1, ByteBuffer buffer2) {
@@ -406,6 +414,27 @@ public class Transaction implements MessageObject {
 
     public byte[] getBytes(boolean forSigning) {
 
+        byte[] array = forSigning ? bytesForSigning : bytesForTransmission;
+        if (array == null) {
+            array = serialize(forSigning);
+            if (forSigning) {
+                bytesForSigning = array;
+            } else if (type != typeCycle && (type == typeCoinGeneration || signature != null)) {
+                bytesForTransmission = array;
+            }
+        } else {
+            bytesCacheHitCount.increment();
+        }
+
+        return array;
+    }
+
+    public static long getBytesCacheHitCount() {
+        return bytesCacheHitCount.sum();
+    }
+
+    private byte[] serialize(boolean forSigning) {
+
         byte[] array = new byte[getByteSize(forSigning)];
 
         ByteBuffer buffer = ByteBuffer.wrap(array);
@@ -564,12 +593,43 @@ public class Transaction implements MessageObject {
         return transaction;
     }
 
+    public static void skipInBlockBuffer(ByteBuffer buffer) {
+
+        // This advances the buffer past one transaction as it is stored in a block, reading only the fields needed to
+        // determine its length. It consumes exactly the bytes that fromByteBuffer() would with
+        // balanceListCycleTransaction set to false, including for an unknown type.
+        byte type = buffer.get();
+        buffer.position(buffer.position() + FieldByteSize.timestamp);
+        if (type == typeCoinGeneration) {
+            buffer.position(buffer.position() + FieldByteSize.transactionAmount + FieldByteSize.identifier);
+        } else if (type == typeSeed || type == typeStandard || type == typeCycle) {
+            buffer.position(buffer.position() + FieldByteSize.transactionAmount + FieldByteSize.identifier +
+                    FieldByteSize.blockHeight + FieldByteSize.identifier);
+            int senderDataLength = Math.min(buffer.get(), 32);
+            if (senderDataLength < 0) {
+                throw new IllegalArgumentException("invalid sender-data length: " + senderDataLength);
+            }
+            buffer.position(buffer.position() + senderDataLength + FieldByteSize.signature);
+            if (type == typeCycle) {
+                int numberOfCycleSignatures = Math.max(buffer.getInt(), 0);
+                buffer.position((int) Math.min(Integer.MAX_VALUE, buffer.position() + (long) numberOfCycleSignatures *
+                        (FieldByteSize.identifier + FieldByteSize.signature)));
+            }
+        } else if (type == typeCycleSignature) {
+            buffer.position(buffer.position() + FieldByteSize.identifier + FieldByteSize.booleanField +
+                    FieldByteSize.signature + FieldByteSize.signature);
+        }
+    }
+
     private static Block previousHashBlockForHeight(long hashHeight, long transactionHeight,
                                                     byte[] previousHashInChain) {
 
         // First, try to get a frozen block. If one is not available, and the height referenced is past the frozen edge,
-        // try to get a block on the branch leading to this transaction.
-        Block block = BlockManager.frozenBlockForHeight(hashHeight);
+        // try to get a block on the branch leading to this transaction. Blocks behind the retention edge are read
+        // through the historical block service, so decoding old blocks, as a chain replay does, does not extract
+        // consolidated files or fill the block map with old blocks.
+        Block block = hashHeight < BlockManager.getRetentionEdgeHeight() ?
+                HistoricalBlockService.blockForHeight(hashHeight) : BlockManager.frozenBlockForHeight(hashHeight);
         if (block == null && hashHeight > BlockManager.getFrozenEdgeHeight()) {
             Block previousBlock = UnfrozenBlockManager.unverifiedBlockAtHeight(transactionHeight - 1,
                     previousHashInChain);
@@ -702,8 +762,7 @@ public class Transaction implements MessageObject {
 
     public boolean signatureIsValid() {
 
-        if (signatureState == SignatureState.Undetermined && (type == typeSeed || type == typeStandard ||
-                type == typeCycle || type == typeCycleSignature)) {
+        if (signatureState == SignatureState.Undetermined && hasSenderSignature()) {
             signatureState = SignatureUtil.signatureIsValid(signature, getBytes(true), senderIdentifier) ?
                     SignatureState.Valid : SignatureState.Invalid;
         }
@@ -711,6 +770,50 @@ public class Transaction implements MessageObject {
         return signatureState == SignatureState.Valid;
     }
 
+    public static void verifySignatures(List<Transaction> transactions) {
+
+        // Verify all undetermined signatures in one batch so the work is spread across cores. The results are stored
+        // in the transactions, so subsequent calls to signatureIsValid() return immediately.
+        List<Transaction> undetermined = undeterminedSignatures(transactions);
+        if (undetermined.size() > 1) {
+            int count = undetermined.size();
+            byte[][] signatures = new byte[count][];
+            byte[][] signedBytes = new byte[count][];
+            byte[][] identifiers = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                Transaction transaction = undetermined.get(i);
+                signatures[i] = transaction.signature;
+                signedBytes[i] = transaction.getBytes(true);
+                identifiers[i] = transaction.senderIdentifier;
+            }
+
+            BitSet valid = SignatureUtil.signaturesAreValid(signatures, signedBytes, identifiers);
+            for (int i = 0; i < count; i++) {
+                undetermined.get(i).setSignatureValid(valid.get(i));
+            }
+        }
+    }
+
+    static List<Transaction> undeterminedSignatures(List<Transaction> transactions) {
+
+        List<Transaction> undetermined = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            if (transaction.signatureState == SignatureState.Undetermined && transaction.hasSenderSignature()) {
+                undetermined.add(transaction);
+            }
+        }
+
+        return undetermined;
+    }
+
+    void setSignatureValid(boolean valid) {
+        signatureState = valid ? SignatureState.Valid : SignatureState.Invalid;
+    }
+
+    private boolean hasSenderSignature() {
+        return type == typeSeed || type == typeStandard || type == typeCycle || type == typeCycleSignature;
+    }
+
     public boolean signatureIsValid(byte[] identifier, byte[] signature) {
         return SignatureUtil.signatureIsValid(signature, getBytes(true), identifier);
     }
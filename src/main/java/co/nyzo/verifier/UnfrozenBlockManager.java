@@ -81,8 +81,8 @@ public class UnfrozenBlockManager {
         // Reject all blocks with invalid signatures. We should only be working one past the frozen edge, but we will
         // accept to the open edge in case we have gotten behind.
         long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
-        if (block != null && block.getBlockHeight() > frozenEdgeHeight && block.signatureIsValid() &&
-                block.getBlockHeight() <= BlockManager.openEdgeHeight(true)) {
+        if (block != null && block.getBlockHeight() > frozenEdgeHeight &&
+                block.getBlockHeight() <= BlockManager.openEdgeHeight(true) && block.signaturesAreValid()) {
 
             // Get the map of blocks at this height.
             Map<ByteBuffer, Block> blocksAtHeight = unfrozenBlocks.get(block.getBlockHeight());
@@ -182,7 +182,7 @@ public class ClientTransactionUtil {
 
             // Now, get the block in which the transaction was supposed to be incorporated. Report whether the
             // transaction is in the block.
-            Block transactionBlock = BlockManager.frozenBlockForHeight(transactionHeight);
+            Block transactionBlock = HistoricalBlockService.blockForHeight(transactionHeight);
             if (transactionBlock == null) {
                 System.out.println(ConsoleColor.Red + "unable to determine whether transaction was incorporated into " +
                         "the chain" + ConsoleColor.reset);
@@ -1,9 +1,10 @@
 package co.nyzo.verifier.client.commands;
 
 import co.nyzo.verifier.BalanceList;
-import co.nyzo.verifier.BalanceListItem;
+import co.nyzo.verifier.BalanceListColumns;
 import co.nyzo.verifier.BalanceListManager;
 import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.FieldByteSize;
 import co.nyzo.verifier.client.*;
 import co.nyzo.verifier.nyzoString.NyzoString;
 import co.nyzo.verifier.nyzoString.NyzoStringEncoder;
@@ -62,9 +63,7 @@ public class BalanceDisplayCommand implements Command {
     @Override
     public ExecutionResult run(List<String> argumentValues, CommandOutput output) {
 
-        String walletIdOrPrefix = argumentValues.size() < 1 ? "" : argumentValues.get(0);
-        walletIdOrPrefix = walletIdOrPrefix == null ? "" : walletIdOrPrefix.trim().toLowerCase();
-        walletIdOrPrefix = walletIdOrPrefix.replaceAll("[^a-f0-9]", "");
+        String walletIdOrPrefix = normalizePrefix(argumentValues.size() < 1 ? "" : argumentValues.get(0));
 
         // Make the lists for the notices and errors. Make the result table.
         List<String> notices = new ArrayList<>();
@@ -86,20 +85,17 @@ public class BalanceDisplayCommand implements Command {
             if (balanceList == null) {
                 errors.add("Unable to get balance list");
             } else {
-                int numberFound = 0;
-                for (BalanceListItem item : balanceList.getItems()) {
-                    String identifier = ByteUtil.arrayAsStringNoDashes(item.getIdentifier());
-                    if (identifier.startsWith(walletIdOrPrefix)) {
-                        numberFound++;
-                        NyzoString identifierString = new NyzoStringPublicIdentifier(item.getIdentifier());
-                        table.addRow(balanceList.getBlockHeight(),
-                                ByteUtil.arrayAsStringWithDashes(item.getIdentifier()),
-                                NyzoStringEncoder.encode(identifierString),
-                                PrintUtil.printAmount(item.getBalance()));
-                    }
+                BalanceListColumns columns = balanceList.getColumns();
+                List<Integer> indices = indicesForPrefix(columns, walletIdOrPrefix);
+                for (int index : indices) {
+                    byte[] identifier = columns.getIdentifier(index);
+                    NyzoString identifierString = new NyzoStringPublicIdentifier(identifier);
+                    table.addRow(balanceList.getBlockHeight(), ByteUtil.arrayAsStringWithDashes(identifier),
+                            NyzoStringEncoder.encode(identifierString),
+                            PrintUtil.printAmount(columns.getBalance(index)));
                 }
 
-                if (numberFound == 0) {
+                if (indices.isEmpty()) {
                     notices.add("Unable to find any accounts matching ID/prefix " + walletIdOrPrefix);
                 }
             }
@@ -107,4 +103,40 @@ public class BalanceDisplayCommand implements Command {
 
         return new SimpleExecutionResult(table, notices, errors);
     }
+
+    public static String normalizePrefix(String walletIdOrPrefix) {
+
+        // The prefix is compared to identifiers formatted by ByteUtil.arrayAsStringNoDashes(): lowercase hex without
+        // dashes. Anything else is removed, and the prefix is limited to the length of a full identifier.
+        String result = walletIdOrPrefix == null ? "" : walletIdOrPrefix.trim().toLowerCase();
+        result = result.replaceAll("[^a-f0-9]", "");
+        if (result.length() > FieldByteSize.identifier * 2) {
+            result = result.substring(0, FieldByteSize.identifier * 2);
+        }
+
+        return result;
+    }
+
+    public static List<Integer> indicesForPrefix(BalanceListColumns columns, String normalizedPrefix) {
+
+        // The accounts matching the prefix are contiguous in the sorted list. The search starts at the position of
+        // the prefix padded with zeros and stops at the first identifier without the prefix. A prefix with an odd
+        // number of characters is padded with a zero before conversion, because the conversion to bytes drops an
+        // unpaired final character.
+        String paddedPrefix = normalizedPrefix.length() % 2 == 0 ? normalizedPrefix : normalizedPrefix + "0";
+        byte[] lowerBound = ByteUtil.byteArrayFromHexString(paddedPrefix, FieldByteSize.identifier);
+        int index = columns.indexOf(lowerBound);
+        index = index < 0 ? -(index + 1) : index;
+
+        List<Integer> indices = new ArrayList<>();
+        boolean matches = true;
+        for (; index < columns.size() && matches; index++) {
+            matches = ByteUtil.arrayAsStringNoDashes(columns.getIdentifier(index)).startsWith(normalizedPrefix);
+            if (matches) {
+                indices.add(index);
+            }
+        }
+
+        return indices;
+    }
 }
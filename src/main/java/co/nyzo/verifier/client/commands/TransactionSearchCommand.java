@@ -123,10 +123,7 @@ public class TransactionSearchCommand implements Command {
                 new CommandTableHeader("transaction (Nyzo string)", "transactionNyzoString", true));
         if (minimumTimestamp > 0) {
             long height = BlockManager.heightForTimestamp(minimumTimestamp);
-            Block block = BlockManager.frozenBlockForHeight(height);
-            if (block == null) {
-                block = HistoricalBlockManager.blockForHeight(height);
-            }
+            Block block = HistoricalBlockService.blockForHeight(height);
             long frozenEdgeHeight = BlockManager.getFrozenEdgeHeight();
             long retentionEdgeHeight = BlockManager.getRetentionEdgeHeight();
             List<Transaction> transactions = new ArrayList<>();
@@ -59,7 +59,7 @@ public class BlockResponse implements MessageObject {
             boolean foundNullBlock = false;
             long blockHeight = endBlockHeight;
             while (totalByteSize < 1000000 && !foundNullBlock && blockHeight >= startBlockHeight) {
-                Block block = BlockManager.frozenBlockForHeight(blockHeight);
+                Block block = HistoricalBlockService.blockForHeight(blockHeight);
                 if (block == null) {
                     foundNullBlock = true;
                 } else {
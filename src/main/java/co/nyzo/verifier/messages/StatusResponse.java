@@ -3,6 +3,7 @@ package co.nyzo.verifier.messages;
 import co.nyzo.verifier.*;
 import co.nyzo.verifier.util.PrintUtil;
 import co.nyzo.verifier.util.TestnetUtil;
+import co.nyzo.verifier.util.VerifiedSignatureCache;
 import co.nyzo.verifier.MemoryMonitor;
 
 import java.nio.ByteBuffer;
@@ -66,6 +67,25 @@ public class StatusResponse implements MessageObject {
             lines.add("new timestamp: " + Verifier.newestTimestampAge(2));
             lines.add("old timestamp: " + Verifier.oldestTimestampAge());
             lines.add("blocks: " + BlockManagerMap.mapInformation());
+            lines.add("historical blocks (cached/files/hit/miss): " + HistoricalBlockService.cacheInformation());
+            lines.add("block writer (queued/pending/batches/durable height/waits/failed): " +
+                    FrozenBlockWriter.writerInformation());
+            lines.add("balance list checkpoints (highest/queued/deleted/dropped): " +
+                    BalanceListCheckpoints.checkpointInformation());
+            lines.add("mesh listener (connections/queued/rejected/timeouts): " +
+                    MeshSelectorListener.listenerInformation());
+            lines.add("peer connections (out/in flight/in/unsupported/slow/handshake timeouts/one-shot/expired): " +
+                    PeerConnectionPool.poolInformation());
+            lines.add("fetch executor (queued/running/waiting/rejected/completed): " +
+                    MessageFetchExecutor.executorInformation());
+            lines.add("broadcast fan-out: " + BroadcastFanOut.fanOutInformation());
+            lines.add("signature cache: " + VerifiedSignatureCache.cacheInformation());
+            lines.add("memoized (block hash/list bytes/list hash/tx bytes): " + Block.getHashCacheHitCount() + "/" +
+                    BalanceList.getBytesCacheHitCount() + "/" + BalanceList.getHashCacheHitCount() + "/" +
+                    Transaction.getBytesCacheHitCount());
+            lines.add("lazy transaction decodes: " + Block.getLazyTransactionDecodeCount());
+            lines.add("balance list segments (reused/encoded): " + BalanceListItem.segmentInformation());
+            lines.add("balance list columns (created/bytes): " + BalanceListColumns.storageInformation());
             lines.add("node-joins sent: " + NodeManager.getNodeJoinRequestsSent());
             lines.add("memory (min/max/avg): " + MemoryMonitor.getMemoryStats());
             lines.add("initialization time: " + String.format("%.1f", Verifier.getInitializationTime() / 1000.0f));
@@ -0,0 +1,99 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.BalanceListColumns;
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.FieldByteSize;
+import co.nyzo.verifier.client.commands.BalanceDisplayCommand;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BalanceDisplayPrefixTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        BalanceDisplayPrefixTest test = new BalanceDisplayPrefixTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful;
+        try {
+            successful = testPrefixSearch();
+        } catch (Exception e) {
+            failureCause = "exception in BalanceDisplayPrefixTest.testPrefixSearch(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        return successful;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+
+    private boolean testPrefixSearch() {
+
+        // Build a sorted list of random identifiers, with a few identifiers added to place matches at the boundaries
+        // of odd-length prefixes. Hex strings sort in the same order as identifiers compared as unsigned bytes.
+        Random random = new Random(9021);
+        List<String> identifiers = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            identifiers.add(ByteUtil.arrayAsStringNoDashes(identifier));
+        }
+        String[] boundaryPrefixes = { "a0", "af", "abc0", "abcf", "abbf", "abd0", "00", "0f", "f0", "ff" };
+        for (String boundaryPrefix : boundaryPrefixes) {
+            StringBuilder identifier = new StringBuilder(boundaryPrefix);
+            while (identifier.length() < FieldByteSize.identifier * 2) {
+                identifier.append(boundaryPrefix.endsWith("f") ? 'f' : '0');
+            }
+            identifiers.add(identifier.toString());
+        }
+        Collections.sort(identifiers);
+
+        int itemSize = FieldByteSize.identifier + FieldByteSize.transactionAmount + FieldByteSize.blocksUntilFee;
+        ByteBuffer buffer = ByteBuffer.allocate(identifiers.size() * itemSize);
+        for (String identifier : identifiers) {
+            buffer.put(ByteUtil.byteArrayFromHexString(identifier, FieldByteSize.identifier));
+            buffer.putLong(1L);
+            buffer.putShort((short) 0);
+        }
+        buffer.flip();
+        BalanceListColumns columns = BalanceListColumns.fromByteBuffer(buffer, identifiers.size());
+
+        // The search must find exactly the identifiers that a full scan finds, for odd-length, single-character,
+        // and even-length prefixes, including prefixes with uppercase characters and dashes.
+        String[] prefixes = { "a", "f", "0", "abc", "ABC", "ab-c", "abd", "abb", "a0", "abc0", "ff", "7" };
+        boolean successful = true;
+        for (int i = 0; i < prefixes.length && successful; i++) {
+            String prefix = BalanceDisplayCommand.normalizePrefix(prefixes[i]);
+            List<Integer> expected = new ArrayList<>();
+            for (int j = 0; j < identifiers.size(); j++) {
+                if (identifiers.get(j).startsWith(prefix)) {
+                    expected.add(j);
+                }
+            }
+
+            List<Integer> found = BalanceDisplayCommand.indicesForPrefix(columns, prefix);
+            if (expected.isEmpty() || !expected.equals(found)) {
+                failureCause = "prefix " + prefixes[i] + ": expected " + expected.size() + " matches, found " +
+                        found.size();
+                successful = false;
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+}
@@ -0,0 +1,263 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class BalanceListTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        BalanceListTest test = new BalanceListTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful;
+        try {
+            successful = testIncrementalHash();
+        } catch (Exception e) {
+            failureCause = "exception in BalanceListTest.testIncrementalHash(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        if (successful) {
+            try {
+                successful = testFeeCounters();
+            } catch (Exception e) {
+                failureCause = "exception in BalanceListTest.testFeeCounters(): " + PrintUtil.printException(e);
+                successful = false;
+            }
+        }
+
+        return successful;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+
+    private boolean testIncrementalHash() {
+
+        // Create a pseudo-random generator. Using a fixed seed ensures reproducibility of problems.
+        Random random = new Random(4417);
+
+        // Build a chain of balance lists in which each list changes a few accounts of the previous list, as a block
+        // would. The hash of each list, computed without assembling the full serialized list, must match the
+        // double-SHA-256 of the serialized list.
+        boolean successful = true;
+        for (int blockchainVersion = 0; blockchainVersion <= Block.maximumBlockchainVersion && successful;
+             blockchainVersion++) {
+
+            List<BalanceListItem> items = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                items.add(new BalanceListItem(randomArray(random, FieldByteSize.identifier),
+                        Math.abs(random.nextLong() % 1000000000L) + 1L, (short) random.nextInt(500), 19L));
+            }
+
+            for (int height = 20; height < 40 && successful; height++) {
+
+                List<BalanceListItem> nextItems = new ArrayList<>();
+                for (BalanceListItem item : items) {
+                    BalanceListItem nextItem = item;
+                    if (random.nextInt(100) == 0) {
+                        nextItem = nextItem.adjustByAmount(random.nextInt(1000) + 1L);
+                    } else if (nextItem.getFeeHeight() <= height - 1) {
+                        nextItem = nextItem.resetFee(height);
+                    }
+                    nextItems.add(nextItem);
+                }
+                items = nextItems;
+
+                List<byte[]> previousVerifiers = new ArrayList<>();
+                for (int i = 0; i < 9; i++) {
+                    previousVerifiers.add(randomArray(random, FieldByteSize.identifier));
+                }
+                List<ApprovedCycleTransaction> approvedCycleTransactions = new ArrayList<>();
+                for (int i = 0; i < random.nextInt(3); i++) {
+                    approvedCycleTransactions.add(new ApprovedCycleTransaction(randomArray(random,
+                            FieldByteSize.identifier), randomArray(random, FieldByteSize.identifier), height - i,
+                            random.nextInt(100000)));
+                }
+                Map<ByteBuffer, Transaction> pendingCycleTransactions = new ConcurrentHashMap<>();
+
+                BalanceList balanceList = new BalanceList(blockchainVersion, height, (byte) random.nextInt(9),
+                        previousVerifiers, items, random.nextInt(1000), random.nextInt(1000), pendingCycleTransactions,
+                        approvedCycleTransactions);
+
+                // Copy the list through serialization so the copy has no cached values. The hash of the copy is
+                // calculated incrementally, and the reference hash is calculated from the serialized bytes.
+                BalanceList copy = BalanceList.fromByteBuffer(ByteBuffer.wrap(balanceList.getBytes()));
+                byte[] incrementalHash = copy.getHash();
+                byte[] referenceHash = HashUtil.doubleSHA256(balanceList.getBytes());
+                if (!ByteUtil.arraysAreEqual(incrementalHash, referenceHash)) {
+                    successful = false;
+                    failureCause = "mismatch of incremental hash (" +
+                            ByteUtil.arrayAsStringWithDashes(incrementalHash) + ") and reference hash (" + ByteUtil.arrayAsStringWithDashes(referenceHash) +
+                            ") for blockchain version " + blockchainVersion + " at height " + height +
+                            " in BalanceListTest.testIncrementalHash()";
+                }
+
+                // The copy is held in columns. Its serialized form, lookups, and items must match the original list.
+                if (successful && !checkColumns(balanceList, copy)) {
+                    successful = false;
+                    failureCause = "mismatch of columnar list for blockchain version " + blockchainVersion +
+                            " at height " + height + " in BalanceListTest.testIncrementalHash()";
+                }
+
+                // The incremental hash of the original list, which reuses the item segments of previous lists, must
+                // also match.
+                BalanceList rebuilt = new BalanceList(blockchainVersion, height, balanceList.getRolloverFees(),
+                        previousVerifiers, items, balanceList.getUnlockThreshold(), balanceList.getUnlockTransferSum(),
+                        pendingCycleTransactions, approvedCycleTransactions);
+                if (successful && !ByteUtil.arraysAreEqual(rebuilt.getHash(), referenceHash)) {
+                    successful = false;
+                    failureCause = "mismatch of incremental hash with reused segments and reference hash for " +
+                            "blockchain version " + blockchainVersion + " at height " + height +
+                            " in BalanceListTest.testIncrementalHash()";
+                }
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private static boolean checkColumns(BalanceList balanceList, BalanceList copy) {
+
+        boolean successful = ByteUtil.arraysAreEqual(balanceList.getBytes(), copy.getBytes()) &&
+                balanceList.getNumberOfItems() == copy.getNumberOfItems();
+
+        BalanceListColumns columns = copy.getColumns();
+        int index = 0;
+        for (BalanceListItem item : balanceList.getItems()) {
+            if (successful) {
+                successful = columns.identifierEquals(index, item.getIdentifier()) &&
+                        columns.getBalance(index) == item.getBalance() &&
+                        columns.getBlocksUntilFee(index) == item.getBlocksUntilFee(balanceList.getBlockHeight()) &&
+                        copy.balanceForIdentifier(item.getIdentifier()) == item.getBalance();
+            }
+            index++;
+        }
+
+        // Identifiers that are not in the list, including malformed identifiers, must have balances of zero. The
+        // search result for a missing identifier is its insertion point.
+        byte[] missingIdentifier = new byte[FieldByteSize.identifier];
+        Arrays.fill(missingIdentifier, (byte) -1);
+        successful &= copy.balanceForIdentifier(missingIdentifier) == 0L &&
+                !copy.containsIdentifier(missingIdentifier) &&
+                columns.indexOf(missingIdentifier) == -(columns.size() + 1) &&
+                copy.balanceForIdentifier(new byte[0]) == 0L && balanceList.balanceForIdentifier(new byte[0]) == 0L;
+
+        // Building the map from the columns must produce the same items.
+        List<BalanceListItem> copyItems = copy.getItems();
+        for (int i = 0; i < copyItems.size() && successful; i++) {
+            BalanceListItem item = copyItems.get(i);
+            BalanceListItem originalItem = balanceList.getItems().get(i);
+            successful = ByteUtil.arraysAreEqual(item.getIdentifier(), originalItem.getIdentifier()) &&
+                    item.getBalance() == originalItem.getBalance() &&
+                    item.getBlocksUntilFee(copy.getBlockHeight()) ==
+                            originalItem.getBlocksUntilFee(balanceList.getBlockHeight());
+        }
+
+        return successful;
+    }
+
+    private boolean testFeeCounters() {
+
+        // Create a pseudo-random generator. Using a fixed seed ensures reproducibility of problems.
+        Random random = new Random(2203);
+
+        // Run the same sequence of blocks through a reference model of the fee counters, which decrements the counter
+        // of every account in every block, and through the balance map, which stores fee heights. The accounts charged
+        // in each block and the counter of each account in each list must be identical.
+        Map<ByteBuffer, Integer> referenceCounters = new HashMap<>();
+        PersistentBalanceMap map = PersistentBalanceMap.empty();
+        List<byte[]> identifiers = new ArrayList<>();
+        identifiers.add(BalanceListItem.transferIdentifier);
+
+        boolean successful = true;
+        for (long height = 0; height < 1600 && successful; height++) {
+
+            // Choose the accounts changed in this block: a few existing accounts and, occasionally, a new account.
+            List<byte[]> changedIdentifiers = new ArrayList<>();
+            if (height == 0 || random.nextInt(3) == 0) {
+                byte[] identifier = randomArray(random, FieldByteSize.identifier);
+                identifiers.add(identifier);
+                changedIdentifiers.add(identifier);
+            }
+            for (int i = 0; i < 3; i++) {
+                changedIdentifiers.add(identifiers.get(random.nextInt(identifiers.size())));
+            }
+
+            // Apply the block to the reference model.
+            Set<ByteBuffer> referenceCharged = new HashSet<>();
+            for (byte[] identifier : changedIdentifiers) {
+                ByteBuffer key = ByteBuffer.wrap(identifier);
+                if (!referenceCounters.containsKey(key)) {
+                    referenceCounters.put(key, ByteUtil.arraysAreEqual(identifier,
+                            BalanceListItem.transferIdentifier) ? 0 : 500);
+                }
+            }
+            for (ByteBuffer key : referenceCounters.keySet()) {
+                if (referenceCounters.get(key) <= 0 &&
+                        !ByteUtil.arraysAreEqual(key.array(), BalanceListItem.transferIdentifier)) {
+                    referenceCharged.add(key);
+                    referenceCounters.put(key, 500);
+                }
+            }
+            for (ByteBuffer key : referenceCounters.keySet()) {
+                referenceCounters.put(key, Math.max(0, referenceCounters.get(key) - 1));
+            }
+
+            // Apply the block to the balance map.
+            BalanceMapEditor editor = new BalanceMapEditor(map, height);
+            for (byte[] identifier : changedIdentifiers) {
+                editor.adjustBalance(identifier, random.nextInt(1000) + 1L);
+            }
+            Set<ByteBuffer> charged = new HashSet<>();
+            for (BalanceListItem item : editor.getMap().itemsWithFeeDue(height - 1L)) {
+                charged.add(ByteBuffer.wrap(item.getIdentifier()));
+                editor.put(item.resetFee(height));
+            }
+            map = editor.finish();
+
+            if (!charged.equals(referenceCharged)) {
+                successful = false;
+                failureCause = "mismatch of charged accounts at height " + height + ": " + charged.size() +
+                        " charged, " + referenceCharged.size() + " expected";
+            }
+
+            for (BalanceListItem item : map) {
+                int expected = referenceCounters.get(ByteBuffer.wrap(item.getIdentifier()));
+                if (successful && item.getBlocksUntilFee(height) != expected) {
+                    successful = false;
+                    failureCause = "mismatch of blocks-until-fee at height " + height + ": " +
+                            item.getBlocksUntilFee(height) + ", expected " + expected;
+                }
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private static byte[] randomArray(Random random, int length) {
+
+        byte[] array = new byte[length];
+        random.nextBytes(array);
+        return array;
+    }
+}
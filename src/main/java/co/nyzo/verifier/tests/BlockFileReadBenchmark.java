@@ -0,0 +1,127 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BlockFileReadBenchmark {
+
+    // This measures how long the consensus path waits for the BlockManager lock, which freezeBlock() and
+    // setFrozenEdge() hold, while other threads read block files as the RPC server, block responses, and the file
+    // consolidator do. With block-file reads outside the lock, the wait should be the same with and without readers.
+
+    private static final int numberOfBlocks = 1000;
+    private static final int numberOfAccounts = 20000;
+    private static final long runDurationMilliseconds = 3000L;
+
+    public static void main(String[] args) throws Exception {
+
+        int readerThreadCount = Runtime.getRuntime().availableProcessors() * 2;
+        if (args.length > 0) {
+            try {
+                readerThreadCount = Integer.parseInt(args[0]);
+            } catch (Exception ignored) { }
+        }
+
+        File file = File.createTempFile("BlockFileReadBenchmark", ".nyzoblock");
+        file.deleteOnExit();
+        writeFile(file);
+
+        System.out.println("block-file read benchmark: " + numberOfBlocks + " blocks, " + numberOfAccounts +
+                " accounts, " + (file.length() / 1024) + " kB file, " + runDurationMilliseconds + "ms per run");
+
+        // Warm up the JIT before measuring.
+        run(file, 1, 500L, false);
+
+        for (int readerCount : Arrays.asList(0, readerThreadCount)) {
+            run(file, readerCount, runDurationMilliseconds, true);
+        }
+    }
+
+    private static void writeFile(File file) {
+
+        Random random = new Random(1811);
+        byte[] verifierSeed = new byte[FieldByteSize.seed];
+        random.nextBytes(verifierSeed);
+
+        List<BalanceListItem> items = new ArrayList<>();
+        for (int i = 0; i < numberOfAccounts; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            items.add(new BalanceListItem(identifier, random.nextInt(1000000) + 1L, (short) random.nextInt(500),
+                    0L));
+        }
+        BalanceList balanceList = new BalanceList(0, 0L, (byte) 0, new ArrayList<byte[]>(), items, 0L, 0L,
+                null, null);
+
+        List<Block> blocks = new ArrayList<>();
+        byte[] previousBlockHash = new byte[FieldByteSize.hash];
+        for (int i = 0; i < numberOfBlocks; i++) {
+            Block block = new Block(0, i, previousBlockHash, i * Block.blockDuration, new ArrayList<Transaction>(),
+                    balanceList.getHash(), verifierSeed);
+            blocks.add(block);
+            previousBlockHash = block.getHash();
+        }
+
+        BlockManager.writeBlocksToFile(blocks, Collections.singletonList(balanceList), file);
+    }
+
+    private static void run(File file, int readerCount, long durationMilliseconds, boolean printResult) {
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong readCount = new AtomicLong(0L);
+        CountDownLatch doneLatch = new CountDownLatch(readerCount);
+        for (int i = 0; i < readerCount; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    long count = 0L;
+                    while (running.get()) {
+                        if (BlockManager.loadBlocksInFile(file, 0L, Long.MAX_VALUE).size() == numberOfBlocks) {
+                            count++;
+                        }
+                    }
+                    readCount.addAndGet(count);
+                    doneLatch.countDown();
+                }
+            }, "BlockFileReadBenchmark-" + i).start();
+        }
+
+        // Acquire the lock used by the freeze path once per millisecond and record the wait.
+        List<Long> latencies = new ArrayList<>();
+        long startTimestamp = System.currentTimeMillis();
+        while (System.currentTimeMillis() < startTimestamp + durationMilliseconds) {
+            long waitStart = System.nanoTime();
+            synchronized (BlockManager.class) {
+                latencies.add(System.nanoTime() - waitStart);
+            }
+            try {
+                Thread.sleep(1L);
+            } catch (Exception ignored) { }
+        }
+
+        running.set(false);
+        try {
+            doneLatch.await();
+        } catch (Exception ignored) { }
+        long elapsed = System.currentTimeMillis() - startTimestamp;
+
+        Collections.sort(latencies);
+        if (printResult) {
+            System.out.println(String.format("readers: %3d, file reads/second: %8.1f, lock wait (us) p50: %8.1f, " +
+                            "p99: %8.1f, max: %8.1f", readerCount, readCount.get() * 1000.0 / Math.max(1L, elapsed),
+                    percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0)));
+        }
+    }
+
+    private static double percentile(List<Long> sortedNanoseconds, double fraction) {
+
+        int index = (int) Math.min(sortedNanoseconds.size() - 1, Math.floor(sortedNanoseconds.size() * fraction));
+        return sortedNanoseconds.isEmpty() ? 0.0 : sortedNanoseconds.get(index) / 1000.0;
+    }
+}
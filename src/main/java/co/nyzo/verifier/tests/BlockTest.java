@@ -0,0 +1,217 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class BlockTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        BlockTest test = new BlockTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful = testSerialization();
+        if (successful) {
+            successful = testFileBufferReleased();
+        }
+
+        return successful;
+    }
+
+    private boolean testSerialization() {
+
+        boolean successful;
+        try {
+            // Blocks with every transaction type that can appear in a block are serialized back-to-back in a single
+            // buffer, as they are in block files. Each block read without validation must consume exactly its own
+            // bytes, re-serialize to the original bytes, and decode to the original transactions on request.
+            Random random = new Random(2211);
+            List<Block> blocks = new ArrayList<>();
+            byte[] previousBlockHash = new byte[FieldByteSize.hash];
+            for (int i = 0; i < 20; i++) {
+                Block block = new Block(1, 1000L + i, previousBlockHash, 1000000L + i * Block.blockDuration,
+                        randomTransactions(random, i), randomBytes(random, FieldByteSize.hash),
+                        randomBytes(random, FieldByteSize.seed));
+                blocks.add(block);
+                previousBlockHash = block.getHash();
+            }
+
+            int totalSize = 0;
+            for (Block block : blocks) {
+                totalSize += block.getByteSize();
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(totalSize);
+            for (Block block : blocks) {
+                buffer.put(block.getBytes());
+            }
+            buffer.rewind();
+
+            successful = true;
+            for (int i = 0; i < blocks.size() && successful; i++) {
+                Block original = blocks.get(i);
+                int startPosition = buffer.position();
+                Block block = Block.fromByteBuffer(buffer, false);
+                if (buffer.position() - startPosition != original.getByteSize()) {
+                    successful = false;
+                    failureCause = "block " + i + " consumed " + (buffer.position() - startPosition) +
+                            " bytes; expected " + original.getByteSize();
+                } else if (block.getBlockHeight() != original.getBlockHeight() ||
+                        !ByteUtil.arraysAreEqual(block.getHash(), original.getHash()) ||
+                        !ByteUtil.arraysAreEqual(block.getVerifierIdentifier(), original.getVerifierIdentifier())) {
+                    successful = false;
+                    failureCause = "header fields of block " + i + " do not match";
+                } else if (block.getNumberOfTransactions() != original.getTransactions().size()) {
+                    successful = false;
+                    failureCause = "block " + i + " reports " + block.getNumberOfTransactions() +
+                            " transactions; expected " + original.getTransactions().size();
+                } else if (block.getByteSize() != original.getByteSize() ||
+                        !ByteUtil.arraysAreEqual(block.getBytes(), original.getBytes())) {
+                    successful = false;
+                    failureCause = "serialized bytes of block " + i + " do not match before decoding";
+                } else {
+                    List<Transaction> transactions = block.getTransactions();
+                    List<Transaction> originalTransactions = original.getTransactions();
+                    for (int j = 0; j < transactions.size() && successful; j++) {
+                        if (!ByteUtil.arraysAreEqual(transactions.get(j).getBytes(),
+                                originalTransactions.get(j).getBytes())) {
+                            successful = false;
+                            failureCause = "transaction " + j + " of block " + i + " does not match";
+                        }
+                    }
+
+                    if (successful && (transactions.size() != originalTransactions.size() ||
+                            block.getTransactions() != transactions ||
+                            !ByteUtil.arraysAreEqual(block.getBytes(), original.getBytes()))) {
+                        successful = false;
+                        failureCause = "block " + i + " does not match after decoding";
+                    }
+                }
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BlockTest.testSerialization(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private boolean testFileBufferReleased() {
+
+        boolean successful;
+        try {
+            // A block is read without validation from the start of a large array, as from an individual block file
+            // followed by its balance list. The block must not keep the array alive, and it must still serialize to
+            // its original bytes and decode its transactions after the array is collected.
+            Random random = new Random(3307);
+            Block original = new Block(1, 2000L, new byte[FieldByteSize.hash], 2000000L,
+                    randomTransactions(random, 5), randomBytes(random, FieldByteSize.hash),
+                    randomBytes(random, FieldByteSize.seed));
+            byte[] originalBytes = original.getBytes();
+            byte[] fileBytes = new byte[originalBytes.length + 8 * 1024 * 1024];
+            System.arraycopy(originalBytes, 0, fileBytes, 0, originalBytes.length);
+            WeakReference<byte[]> fileReference = new WeakReference<>(fileBytes);
+
+            Block block = Block.fromByteBuffer(ByteBuffer.wrap(fileBytes), false);
+            fileBytes = null;
+            for (int i = 0; i < 20 && fileReference.get() != null; i++) {
+                System.gc();
+                Thread.sleep(50L);
+            }
+
+            if (fileReference.get() != null) {
+                successful = false;
+                failureCause = "block read from a file buffer keeps the buffer alive";
+            } else if (!ByteUtil.arraysAreEqual(block.getBytes(), originalBytes)) {
+                successful = false;
+                failureCause = "block read from a file buffer does not serialize to its original bytes";
+            } else if (block.getTransactions().size() != original.getTransactions().size() ||
+                    !ByteUtil.arraysAreEqual(block.getBytes(), originalBytes)) {
+                successful = false;
+                failureCause = "block read from a file buffer does not match after decoding";
+            } else {
+                successful = true;
+            }
+        } catch (Exception e) {
+            failureCause = "exception in BlockTest.testFileBufferReleased(): " + PrintUtil.printException(e);
+            successful = false;
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+
+    private static List<Transaction> randomTransactions(Random random, int blockIndex) {
+
+        // The first block has no transactions. Others have a mix of all types, including v1 cycle transactions with
+        // signatures and sender data of varying lengths.
+        List<Transaction> transactions = new ArrayList<>();
+        int numberOfTransactions = blockIndex == 0 ? 0 : random.nextInt(12);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            long timestamp = 1000000L + blockIndex * Block.blockDuration + i;
+            long amount = random.nextInt(1000000) + 1L;
+            byte[] senderData = randomBytes(random, random.nextInt(33));
+            int type = random.nextInt(5);
+            if (type == Transaction.typeCoinGeneration) {
+                transactions.add(Transaction.coinGenerationTransaction(timestamp, amount,
+                        randomBytes(random, FieldByteSize.identifier)));
+            } else if (type == Transaction.typeSeed) {
+                transactions.add(Transaction.seedTransaction(timestamp, amount,
+                        randomBytes(random, FieldByteSize.identifier), 10L, new byte[FieldByteSize.hash],
+                        randomBytes(random, FieldByteSize.identifier), senderData,
+                        randomBytes(random, FieldByteSize.signature)));
+            } else if (type == Transaction.typeStandard) {
+                transactions.add(Transaction.standardTransaction(timestamp, amount,
+                        randomBytes(random, FieldByteSize.identifier), 10L, new byte[FieldByteSize.hash],
+                        randomBytes(random, FieldByteSize.identifier), senderData,
+                        randomBytes(random, FieldByteSize.signature)));
+            } else if (type == Transaction.typeCycle) {
+                Map<ByteBuffer, byte[]> cycleSignatures = new HashMap<>();
+                int numberOfSignatures = random.nextInt(4);
+                for (int j = 0; j < numberOfSignatures; j++) {
+                    cycleSignatures.put(ByteBuffer.wrap(randomBytes(random, FieldByteSize.identifier)),
+                            randomBytes(random, FieldByteSize.signature));
+                }
+                transactions.add(Transaction.cycleTransaction(timestamp, amount,
+                        randomBytes(random, FieldByteSize.identifier), 10L, new byte[FieldByteSize.hash],
+                        randomBytes(random, FieldByteSize.identifier), senderData,
+                        randomBytes(random, FieldByteSize.signature), cycleSignatures,
+                        new HashMap<ByteBuffer, Transaction>()));
+            } else {
+                transactions.add(Transaction.cycleSignatureTransaction(timestamp,
+                        randomBytes(random, FieldByteSize.identifier), random.nextBoolean() ? Transaction.voteYes :
+                                Transaction.voteNo, randomBytes(random, FieldByteSize.signature),
+                        randomBytes(random, FieldByteSize.signature)));
+            }
+        }
+
+        return transactions;
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+
+        return bytes;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+}
@@ -0,0 +1,98 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.ByteUtil;
+import co.nyzo.verifier.HashUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HashUtilBenchmark {
+
+    private static final int inputSize = 256;
+    private static final long runDurationMilliseconds = 2000L;
+
+    public static void main(String[] args) {
+
+        int maximumThreadCount = Runtime.getRuntime().availableProcessors();
+        if (args.length > 0) {
+            try {
+                maximumThreadCount = Integer.parseInt(args[0]);
+            } catch (Exception ignored) { }
+        }
+
+        System.out.println("SHA-256 benchmark: " + inputSize + "-byte inputs, " + runDurationMilliseconds +
+                "ms per run, up to " + maximumThreadCount + " threads");
+
+        // Warm up the JIT before measuring.
+        runWithThreads(1, 500L);
+
+        // Measure powers of two, always ending with the maximum thread count.
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threadCount = 1; threadCount < maximumThreadCount; threadCount *= 2) {
+            threadCounts.add(threadCount);
+        }
+        threadCounts.add(maximumThreadCount);
+
+        double singleThreadRate = 0.0;
+        for (int threadCount : threadCounts) {
+            double rate = runWithThreads(threadCount, runDurationMilliseconds);
+            if (threadCount == 1) {
+                singleThreadRate = rate;
+            }
+            System.out.println(String.format("threads: %3d, hashes/second: %,12.0f, scaling: %5.2fx", threadCount,
+                    rate, rate / singleThreadRate));
+        }
+    }
+
+    private static double runWithThreads(int threadCount, long durationMilliseconds) {
+
+        AtomicLong hashCount = new AtomicLong(0L);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        CountDownLatch doneLatch = new CountDownLatch(threadCount);
+        long[] endTimestamp = new long[1];
+
+        for (int i = 0; i < threadCount; i++) {
+            Random random = new Random(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    byte[] input = new byte[inputSize];
+                    random.nextBytes(input);
+
+                    try {
+                        startLatch.await();
+                    } catch (Exception ignored) { }
+
+                    // The result of each hash feeds the next input so that the work cannot be optimized away.
+                    long count = 0L;
+                    while (System.currentTimeMillis() < endTimestamp[0]) {
+                        byte[] hash = HashUtil.doubleSHA256(input);
+                        System.arraycopy(hash, 0, input, 0, hash.length);
+                        count++;
+                    }
+                    hashCount.addAndGet(count);
+
+                    if (ByteUtil.isAllZeros(input)) {
+                        System.out.println("unexpected all-zero input");
+                    }
+
+                    doneLatch.countDown();
+                }
+            }, "HashUtilBenchmark-" + i).start();
+        }
+
+        long startTimestamp = System.currentTimeMillis();
+        endTimestamp[0] = startTimestamp + durationMilliseconds;
+        startLatch.countDown();
+        try {
+            doneLatch.await();
+        } catch (Exception ignored) { }
+        long elapsed = System.currentTimeMillis() - startTimestamp;
+
+        return hashCount.get() * 1000.0 / Math.max(1L, elapsed);
+    }
+}
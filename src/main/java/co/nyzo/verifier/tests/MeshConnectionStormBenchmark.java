@@ -0,0 +1,136 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.MeshListener;
+import co.nyzo.verifier.MeshSelectorListener;
+import co.nyzo.verifier.Message;
+import co.nyzo.verifier.MessageType;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MeshConnectionStormBenchmark {
+
+    // This opens a storm of short-lived connections, each sending one ping and reading the response, against the
+    // thread-per-connection TCP listener and the selector-based listener, both running in this process on ephemeral
+    // ports. It reports connection throughput, connection latency, and the number of threads each listener started.
+    // The number of concurrent clients is kept at or below the per-IP connection limit, as all connections come from
+    // the loopback address.
+
+    public static void main(String[] args) throws Exception {
+
+        int numberOfConnections = 5000;
+        int numberOfClients = 16;
+        try {
+            if (args.length > 0) {
+                numberOfConnections = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                numberOfClients = Integer.parseInt(args[1]);
+            }
+        } catch (Exception ignored) { }
+
+        byte[] ping = new Message(MessageType.Ping200, null).getBytesForTransmission();
+
+        MeshListener.startSocketThreadTcp(0);
+        while (MeshListener.getPortTcp() <= 0) {
+            Thread.sleep(10L);
+        }
+        int threadPerConnectionPort = MeshListener.getPortTcp();
+
+        MeshSelectorListener.start(0, new AtomicBoolean(true));
+        int selectorPort = MeshSelectorListener.getPort();
+
+        System.out.println("connection-storm benchmark: " + numberOfConnections + " connections, " +
+                numberOfClients + " concurrent clients");
+
+        // Warm up both listeners before measuring.
+        run("thread-per-connection", threadPerConnectionPort, ping, 500, numberOfClients, false);
+        run("selector", selectorPort, ping, 500, numberOfClients, false);
+
+        run("thread-per-connection", threadPerConnectionPort, ping, numberOfConnections, numberOfClients, true);
+        run("selector", selectorPort, ping, numberOfConnections, numberOfClients, true);
+
+        UpdateUtil.terminate();
+        System.exit(0);
+    }
+
+    private static void run(String name, int port, byte[] ping, int numberOfConnections, int numberOfClients,
+                            boolean printResult) throws Exception {
+
+        // Allow connections from the previous run to be closed before starting.
+        Thread.sleep(1000L);
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        long startedThreadsBefore = threadBean.getTotalStartedThreadCount();
+
+        AtomicInteger remainingConnections = new AtomicInteger(numberOfConnections);
+        AtomicInteger failureCount = new AtomicInteger(0);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        CountDownLatch doneLatch = new CountDownLatch(numberOfClients);
+        long startTimestamp = System.nanoTime();
+        for (int i = 0; i < numberOfClients; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+
+                    while (remainingConnections.getAndDecrement() > 0) {
+                        long connectionStart = System.nanoTime();
+                        try {
+                            Socket socket = new Socket("127.0.0.1", port);
+                            try {
+                                socket.setSoTimeout(5000);
+                                OutputStream outputStream = socket.getOutputStream();
+                                outputStream.write(ping);
+                                outputStream.flush();
+
+                                DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+                                int length = inputStream.readInt();
+                                byte[] response = new byte[length - 4];
+                                inputStream.readFully(response);
+                            } finally {
+                                socket.close();
+                            }
+                            latencies.add(System.nanoTime() - connectionStart);
+                        } catch (Exception e) {
+                            failureCount.incrementAndGet();
+                        }
+                    }
+                    doneLatch.countDown();
+                }
+            }, "MeshConnectionStormBenchmark-client-" + i).start();
+        }
+        doneLatch.await();
+        long elapsedNanoseconds = System.nanoTime() - startTimestamp;
+
+        // The client threads are excluded from the count of threads started by the listener.
+        long startedThreads = threadBean.getTotalStartedThreadCount() - startedThreadsBefore - numberOfClients;
+
+        List<Long> sortedLatencies = new ArrayList<>(latencies);
+        Collections.sort(sortedLatencies);
+        if (printResult) {
+            System.out.println(String.format("%-22s connections/second: %8.1f, latency (ms) p50: %6.2f, " +
+                            "p99: %6.2f, max: %7.2f, failures: %d, listener threads started: %d, peak threads: %d",
+                    name + ":", sortedLatencies.size() * 1.0e9 / elapsedNanoseconds,
+                    percentile(sortedLatencies, 0.50), percentile(sortedLatencies, 0.99),
+                    percentile(sortedLatencies, 1.0), failureCount.get(), startedThreads,
+                    threadBean.getPeakThreadCount()));
+        }
+    }
+
+    private static double percentile(List<Long> sortedNanoseconds, double fraction) {
+
+        int index = (int) Math.min(sortedNanoseconds.size() - 1, Math.floor(sortedNanoseconds.size() * fraction));
+        return sortedNanoseconds.isEmpty() ? 0.0 : sortedNanoseconds.get(index) / 1000000.0;
+    }
+}
@@ -0,0 +1,159 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.Message;
+import co.nyzo.verifier.util.UpdateUtil;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class MessageReadBenchmark {
+
+    // This measures the time to read one length-prefixed message from a loopback connection with the previous
+    // reader, which slept for 10 milliseconds after every read, and with Message.readMessageBytes(). The server writes
+    // each message in packet-sized chunks, so messages larger than one chunk arrive over several reads, as block
+    // responses and bootstrap responses do from remote peers.
+
+    private static final int chunkSize = 1400;
+
+    public static void main(String[] args) throws Exception {
+
+        int iterations = 20;
+        try {
+            if (args.length > 0) {
+                iterations = Integer.parseInt(args[0]);
+            }
+        } catch (Exception ignored) { }
+
+        int[] messageSizes = { 1000, 64 * 1024, 1024 * 1024 };
+        System.out.println("message-read benchmark: " + iterations + " messages per size, " + chunkSize +
+                "-byte chunks");
+        for (int messageSize : messageSizes) {
+            byte[] message = new byte[messageSize];
+            new Random(messageSize).nextBytes(message);
+            ByteBuffer.wrap(message).putInt(messageSize);
+
+            // Warm up both readers before measuring.
+            run("previous reader", message, 2, true, false);
+            run("blocking reader", message, 2, false, false);
+
+            run("previous reader", message, iterations, true, true);
+            run("blocking reader", message, iterations, false, true);
+        }
+
+        UpdateUtil.terminate();
+        System.exit(0);
+    }
+
+    private static void run(String name, byte[] message, int iterations, boolean previousReader, boolean printResult)
+            throws Exception {
+
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < iterations; i++) {
+                        Socket socket = serverSocket.accept();
+                        try {
+                            socket.setTcpNoDelay(true);
+                            OutputStream outputStream = socket.getOutputStream();
+                            for (int offset = 0; offset < message.length; offset += chunkSize) {
+                                outputStream.write(message, offset, Math.min(chunkSize, message.length - offset));
+                                outputStream.flush();
+                            }
+                            socket.getInputStream().read();
+                        } finally {
+                            socket.close();
+                        }
+                    }
+                } catch (Exception ignored) { }
+            }
+        }, "MessageReadBenchmark-server");
+        serverThread.start();
+
+        List<Long> latencies = new ArrayList<>();
+        int failureCount = 0;
+        for (int i = 0; i < iterations; i++) {
+            Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort());
+            try {
+                socket.setSoTimeout(1000);
+                long startTimestamp = System.nanoTime();
+                byte[] result = previousReader ? previousReadMessageBytes(socket.getInputStream()) :
+                        Message.readMessageBytes(socket.getInputStream());
+                long latency = System.nanoTime() - startTimestamp;
+                if (result.length == message.length - 4 && result[result.length - 1] ==
+                        message[message.length - 1]) {
+                    latencies.add(latency);
+                } else {
+                    failureCount++;
+                }
+                socket.getOutputStream().write(0);
+            } finally {
+                socket.close();
+            }
+        }
+
+        serverThread.join();
+        serverSocket.close();
+
+        Collections.sort(latencies);
+        if (printResult) {
+            System.out.println(String.format("%-16s %8d bytes, latency (ms) p50: %8.2f, p99: %8.2f, failures: %d",
+                    name + ":", message.length, percentile(latencies, 0.50), percentile(latencies, 0.99),
+                    failureCount));
+        }
+    }
+
+    private static byte[] previousReadMessageBytes(InputStream inputStream) {
+
+        // This is the reader that Message used before readMessageBytes(), kept here for comparison.
+        byte[] result = new byte[0];
+        try {
+            BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+            byte[] lengthBytes = new byte[4];
+            bufferedInputStream.read(lengthBytes);
+            int messageLength = ByteBuffer.wrap(lengthBytes).getInt();
+
+            if (messageLength <= Message.maximumMessageLength) {
+                result = new byte[messageLength - 4];
+                int totalBytesRead = 0;
+                boolean readFailure = false;
+                int waitCycles = 0;
+                while (totalBytesRead < result.length && !readFailure && waitCycles < 10) {
+                    int numberOfBytesRead = bufferedInputStream.read(result, totalBytesRead,
+                            result.length - totalBytesRead);
+                    if (numberOfBytesRead < 0) {
+                        readFailure = true;
+                    } else {
+                        if (numberOfBytesRead == 0) {
+                            waitCycles++;
+                        }
+                        totalBytesRead += numberOfBytesRead;
+                    }
+
+                    try {
+                        Thread.sleep(10);
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+
+        } catch (Exception ignore) { }
+
+        return result;
+    }
+
+    private static double percentile(List<Long> sortedNanoseconds, double fraction) {
+
+        int index = (int) Math.min(sortedNanoseconds.size() - 1, Math.floor(sortedNanoseconds.size() * fraction));
+        return sortedNanoseconds.isEmpty() ? 0.0 : sortedNanoseconds.get(index) / 1000000.0;
+    }
+}
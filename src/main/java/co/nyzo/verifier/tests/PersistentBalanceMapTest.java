@@ -0,0 +1,127 @@
+package co.nyzo.verifier.tests;
+
+import co.nyzo.verifier.*;
+import co.nyzo.verifier.util.PrintUtil;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+public class PersistentBalanceMapTest implements NyzoTest {
+
+    private String failureCause = null;
+
+    public static void main(String[] args) {
+
+        PersistentBalanceMapTest test = new PersistentBalanceMapTest();
+        boolean successful = test.run();
+
+        if (!successful) {
+            System.out.println(TestUtil.failureCause(test.getFailureCause()));
+        }
+    }
+
+    public boolean run() {
+
+        boolean successful;
+        try {
+            successful = testAgainstSortedMap();
+        } catch (Exception e) {
+            failureCause = "exception in PersistentBalanceMapTest.testAgainstSortedMap(): " +
+                    PrintUtil.printException(e);
+            successful = false;
+        }
+
+        return successful;
+    }
+
+    public String getFailureCause() {
+        return failureCause;
+    }
+
+    private boolean testAgainstSortedMap() {
+
+        // Create a pseudo-random generator. Using a fixed seed ensures reproducibility of problems.
+        Random random = new Random(6151);
+
+        // Use a small identifier space so that updates and removals of existing identifiers are common.
+        List<byte[]> identifiers = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] identifier = new byte[FieldByteSize.identifier];
+            random.nextBytes(identifier);
+            identifiers.add(identifier);
+        }
+
+        // Apply the same random operations to a persistent map and a reference sorted map. Earlier versions of the
+        // persistent map are retained and checked at the end to ensure that they were not changed by later updates.
+        Comparator<ByteBuffer> comparator = new Comparator<ByteBuffer>() {
+            @Override
+            public int compare(ByteBuffer buffer1, ByteBuffer buffer2) {
+                return PersistentBalanceMap.compare(buffer1.array(), buffer2.array());
+            }
+        };
+        TreeMap<ByteBuffer, Long> reference = new TreeMap<>(comparator);
+        PersistentBalanceMap map = PersistentBalanceMap.empty();
+        List<PersistentBalanceMap> snapshots = new ArrayList<>();
+        List<List<BalanceListItem>> snapshotItems = new ArrayList<>();
+
+        boolean successful = true;
+        for (int i = 0; i < 50000 && successful; i++) {
+            byte[] identifier = identifiers.get(random.nextInt(identifiers.size()));
+            if (random.nextInt(4) == 0) {
+                map = map.remove(identifier);
+                reference.remove(ByteBuffer.wrap(identifier));
+            } else {
+                long balance = random.nextInt(1000000) + 1L;
+                map = map.put(BalanceListItem.newAccount(identifier, 0L).adjustByAmount(balance));
+                reference.put(ByteBuffer.wrap(identifier), balance);
+            }
+
+            if (i % 5000 == 0) {
+                snapshots.add(map);
+                snapshotItems.add(new ArrayList<>(map.asList()));
+            }
+
+            if (map.size() != reference.size()) {
+                successful = false;
+                failureCause = "size mismatch after operation " + i + ": " + map.size() + " vs. " + reference.size();
+            }
+        }
+
+        // Check iteration order, indexed access, lookups, and the balance sum.
+        if (successful) {
+            long referenceSum = 0L;
+            int index = 0;
+            Iterator<BalanceListItem> iterator = map.iterator();
+            for (Map.Entry<ByteBuffer, Long> entry : reference.entrySet()) {
+                BalanceListItem item = iterator.next();
+                BalanceListItem indexedItem = map.getAtIndex(index);
+                BalanceListItem lookupItem = map.get(entry.getKey().array());
+                if (!ByteUtil.arraysAreEqual(item.getIdentifier(), entry.getKey().array()) ||
+                        item.getBalance() != entry.getValue() || indexedItem != item || lookupItem != item) {
+                    successful = false;
+                    failureCause = "item mismatch at index " + index;
+                }
+                referenceSum += entry.getValue();
+                index++;
+            }
+
+            if (map.balanceSum() != referenceSum) {
+                successful = false;
+                failureCause = "balance sum mismatch: " + map.balanceSum() + " vs. " + referenceSum;
+            }
+        }
+
+        // Check that the retained versions still hold their original contents.
+        for (int i = 0; i < snapshots.size() && successful; i++) {
+            List<BalanceListItem> items = snapshots.get(i).asList();
+            if (!items.equals(snapshotItems.get(i))) {
+                successful = false;
+                failureCause = "snapshot " + i + " was modified by later updates";
+            }
+        }
+
+        System.out.println(TestUtil.passFail(successful));
+
+        return successful;
+    }
+}
@@ -14,7 +14,11 @@ public class TestUtil {
 
         NyzoTest[] tests = {
                 new NyzoStringTest(),
-                new ShortLongTest()
+                new ShortLongTest(),
+                new BalanceListTest(),
+                new BlockTest(),
+                new PersistentBalanceMapTest(),
+                new BalanceDisplayPrefixTest()
         };
 
         boolean successful = true;
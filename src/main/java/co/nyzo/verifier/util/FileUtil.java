@@ -1,6 +1,9 @@
 package co.nyzo.verifier.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.List;
 
@@ -19,21 +22,69 @@ public class FileUtil {
         file.delete();
     }
 
+    public static ByteBuffer readFile(File file) throws IOException {
+
+        // This reads the entire file with positional reads on its own channel, so concurrent readers of the same file
+        // do not affect each other and no lock is needed.
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ByteBuffer buffer;
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file too large to read: " + file.getName());
+            }
+
+            buffer = ByteBuffer.allocate((int) size);
+            long position = 0L;
+            while (buffer.hasRemaining()) {
+                int bytesRead = channel.read(buffer, position);
+                if (bytesRead < 0) {
+                    throw new IOException("unexpected end of file: " + file.getName());
+                }
+                position += bytesRead;
+            }
+            buffer.flip();
+        } finally {
+            channel.close();
+        }
+
+        return buffer;
+    }
+
+    public static void sync(File file) {
+
+        // This forces the contents of a file, or the entries of a directory, to storage. Directories cannot be opened
+        // for writing, and some platforms do not allow them to be forced at all, so a failure is ignored.
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), file.isDirectory() ? StandardOpenOption.READ :
+                    StandardOpenOption.WRITE);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (Exception ignored) { }
+    }
+
     // These methods provide for atomic file writes. The file is written to a temporary location, then it is moved to
     // the final location atomically, replacing the existing file, if present.
-    public static void writeFile(Path path, byte[] bytes) {
+    public static boolean writeFile(Path path, byte[] bytes) {
 
+        boolean successful = false;
         Path temporaryPath = Paths.get(path.toAbsolutePath().toString() + "_temp");
         try {
             // Write the file to the temporary path then move it to the permanent path.
             Files.deleteIfExists(temporaryPath);
             Files.write(temporaryPath, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
             Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            successful = true;
 
         } catch (Exception ignored) {
             ignored.printStackTrace();
             LogUtil.println("unable to write file " + path.getFileName() + ": " + ignored.getMessage());
         }
+
+        return successful;
     }
 
     public static void writeFile(Path path, List<String> lines) {
@@ -1,7 +1,6 @@
 package co.nyzo.verifier.util;
 
 import co.nyzo.verifier.ByteUtil;
-import co.nyzo.verifier.FieldByteSize;
 import co.nyzo.verifier.KeyUtil;
 import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSASecurityProvider;
@@ -10,14 +9,40 @@ import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
 
 import java.nio.ByteBuffer;
 import java.security.*;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SignatureUtil {
 
-    private static final Map<ByteBuffer, EdDSAEngine> seedToSignatureMap = new HashMap<>();
-    private static final Map<ByteBuffer, EdDSAEngine> identifierToSignatureMap = new HashMap<>();
+    // Keys are immutable once constructed, and constructing them (decompressing the public point or expanding the
+    // seed) is the expensive part of preparing an engine, so keys are cached and shared by all threads. Engines are
+    // stateful, so each thread has its own and initializes it with the cached key for each operation.
+    private static final int maximumKeyCacheSize = 20000;
+    private static final Map<ByteBuffer, PrivateKey> seedToPrivateKeyMap = new ConcurrentHashMap<>();
+    private static final Map<ByteBuffer, PublicKey> identifierToPublicKeyMap = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<EdDSAEngine> engine = ThreadLocal.withInitial(SignatureUtil::newEngine);
+
+    // Batches smaller than this are verified on the calling thread; the handoff would cost more than it saves.
+    private static final int minimumParallelBatchSize = 4;
+
+    // The calling thread always participates in batch verification, so one fewer worker than the number of processors
+    // keeps all cores busy.
+    private static final int verificationThreadCount = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ExecutorService verificationExecutor = verificationThreadCount == 0 ? null :
+            Executors.newFixedThreadPool(verificationThreadCount, new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SignatureUtil-verification-" +
+                            threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     public static final EdDSAParameterSpec spec;
 
@@ -26,23 +51,33 @@ public class SignatureUtil {
         spec = EdDSANamedCurveTable.getByName("Ed25519");
     }
 
+    private static EdDSAEngine newEngine() {
+
+        EdDSAEngine engine = null;
+        try {
+            engine = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
+        } catch (Exception e) {
+            System.err.println("unable to create signature engine: " + PrintUtil.printException(e));
+        }
+
+        return engine;
+    }
+
     public static byte[] signBytes(byte[] bytesToSign, byte[] privateSeed) {
 
         byte[] signatureBytes = null;
 
         try {
             ByteBuffer seedBuffer = ByteBuffer.wrap(privateSeed);
-            EdDSAEngine signature = seedToSignatureMap.get(seedBuffer);
-            if (signature == null) {
-                signature = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-                PrivateKey privateKey = KeyUtil.privateKeyFromSeed(privateSeed);
-                signature.initSign(privateKey);
-                seedToSignatureMap.put(seedBuffer, signature);
+            PrivateKey privateKey = seedToPrivateKeyMap.get(seedBuffer);
+            if (privateKey == null) {
+                privateKey = KeyUtil.privateKeyFromSeed(privateSeed);
+                seedToPrivateKeyMap.put(seedBuffer, privateKey);
             }
 
-            synchronized (SignatureUtil.class) {
-                signatureBytes = signature.signOneShot(bytesToSign);
-            }
+            EdDSAEngine signature = engine.get();
+            signature.initSign(privateKey);
+            signatureBytes = signature.signOneShot(bytesToSign);
 
         } catch (Exception reportOnly) {
             System.err.println("exception signing bytes of length " + (bytesToSign == null ? "(null)" :
@@ -54,33 +89,105 @@ public class SignatureUtil {
 
     public static boolean signatureIsValid(byte[] signatureBytes, byte[] signedBytes, byte[] publicIdentifier) {
 
-        boolean signatureIsValid;
+        // Signatures that have already been verified are not verified again.
+        boolean signatureIsValid = VerifiedSignatureCache.contains(signatureBytes, signedBytes, publicIdentifier);
+        if (!signatureIsValid) {
+            try {
+                ByteBuffer identifierBuffer = ByteBuffer.wrap(publicIdentifier);
+                PublicKey publicKey = identifierToPublicKeyMap.get(identifierBuffer);
+                if (publicKey == null) {
+                    publicKey = KeyUtil.publicKeyFromIdentifier(publicIdentifier);
+                    identifierToPublicKeyMap.put(identifierBuffer, publicKey);
+
+                    // If the map has gotten too big, remove an element from it.
+                    if (identifierToPublicKeyMap.size() > maximumKeyCacheSize) {
+                        try {
+                            ByteBuffer key = identifierToPublicKeyMap.keySet().iterator().next();
+                            identifierToPublicKeyMap.remove(key);
+                        } catch (Exception ignored) { }
+                    }
+                }
 
-        try {
-            ByteBuffer identifierBuffer = ByteBuffer.wrap(publicIdentifier);
-            EdDSAEngine signature = identifierToSignatureMap.get(identifierBuffer);
-            if (signature == null) {
-                signature = new EdDSAEngine(MessageDigest.getInstance(spec.getHashAlgorithm()));
-                PublicKey publicKey = KeyUtil.publicKeyFromIdentifier(publicIdentifier);
+                EdDSAEngine signature = engine.get();
                 signature.initVerify(publicKey);
-                identifierToSignatureMap.put(identifierBuffer, signature);
-
-                // If the map has gotten too big, remove an element from it.
-                if (identifierToSignatureMap.size() > 20000) {
-                    ByteBuffer key = identifierToSignatureMap.keySet().iterator().next();
-                    identifierToSignatureMap.remove(key);
+                signatureIsValid = signature.verifyOneShot(signedBytes, signatureBytes);
+                if (signatureIsValid) {
+                    VerifiedSignatureCache.add(signatureBytes, signedBytes, publicIdentifier);
                 }
+
+            } catch (Exception ignored) {
+
+                signatureIsValid = false;
             }
+        }
 
-            synchronized (SignatureUtil.class) {
-                signatureIsValid = signature.verifyOneShot(signedBytes, signatureBytes);
+        return signatureIsValid;
+    }
+
+    public static BitSet signaturesAreValid(byte[][] signatures, byte[][] signedBytes, byte[][] identifiers) {
+
+        // The result has a bit set for each index whose signature is valid. Arrays of mismatched length are a
+        // programming error, so all signatures are reported invalid in that case.
+        BitSet result = new BitSet(signatures.length);
+        if (signatures.length != signedBytes.length || signatures.length != identifiers.length) {
+            LogUtil.println("mismatched array lengths in SignatureUtil.signaturesAreValid()");
+        } else if (signatures.length < minimumParallelBatchSize || verificationExecutor == null) {
+            for (int i = 0; i < signatures.length; i++) {
+                if (signatureIsValid(signatures[i], signedBytes[i], identifiers[i])) {
+                    result.set(i);
+                }
             }
+        } else {
+            // Each participant claims indices from a shared counter until none remain. The calling thread participates,
+            // so the batch completes even if all workers are busy with other batches. Results are stored in a boolean
+            // array to avoid concurrent modification of the bit set.
+            boolean[] valid = new boolean[signatures.length];
+            AtomicInteger nextIndex = new AtomicInteger(0);
+            AtomicInteger remaining = new AtomicInteger(signatures.length);
+            CountDownLatch completeLatch = new CountDownLatch(1);
+            Runnable verifier = new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while ((index = nextIndex.getAndIncrement()) < signatures.length) {
+                        valid[index] = signatureIsValid(signatures[index], signedBytes[index], identifiers[index]);
+                        if (remaining.decrementAndGet() == 0) {
+                            completeLatch.countDown();
+                        }
+                    }
+                }
+            };
 
-        } catch (Exception ignored) {
+            int helperCount = Math.min(verificationThreadCount, signatures.length - 1);
+            for (int i = 0; i < helperCount; i++) {
+                try {
+                    verificationExecutor.execute(verifier);
+                } catch (Exception ignored) { }
+            }
+            verifier.run();
+
+            // Wait for indices still being processed by workers. An interruption cannot be allowed to cut this short,
+            // as unfinished indices would be reported as invalid signatures.
+            boolean interrupted = false;
+            while (completeLatch.getCount() > 0) {
+                try {
+                    completeLatch.await();
+                } catch (InterruptedException ignored) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
 
-            signatureIsValid = false;
+            // The latch guarantees visibility of all writes to the valid array.
+            for (int i = 0; i < valid.length; i++) {
+                if (valid[i]) {
+                    result.set(i);
+                }
+            }
         }
 
-        return signatureIsValid;
+        return result;
     }
 }
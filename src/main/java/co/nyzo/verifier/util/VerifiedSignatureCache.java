@@ -0,0 +1,89 @@
+package co.nyzo.verifier.util;
+
+import co.nyzo.verifier.HashUtil;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class VerifiedSignatureCache {
+
+    // This cache remembers signatures that have already been verified successfully, so the same transaction, vote, or
+    // block relayed by several peers or checked for several candidate blocks only costs one Ed25519 verification.
+    // Only valid results are stored. An entry is keyed on the signature, and the value is a SHA-256 binding of the
+    // signer's identifier and the signed bytes. A hit requires the same signature, the same identifier, and the same
+    // signed bytes (up to a SHA-256 collision), so a forged message cannot borrow a cached result.
+
+    private static final int maximumSize = 100000;
+
+    private static final Map<ByteBuffer, byte[]> signatureToBindingMap = new ConcurrentHashMap<>();
+    private static final Queue<ByteBuffer> insertionOrder = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger size = new AtomicInteger(0);
+
+    private static final AtomicLong hitCount = new AtomicLong(0L);
+    private static final AtomicLong missCount = new AtomicLong(0L);
+    private static final AtomicLong evictionCount = new AtomicLong(0L);
+
+    public static boolean contains(byte[] signature, byte[] signedBytes, byte[] identifier) {
+
+        boolean contains = false;
+        if (signature != null && signedBytes != null && identifier != null) {
+            byte[] binding = signatureToBindingMap.get(ByteBuffer.wrap(signature));
+            contains = binding != null && Arrays.equals(binding, binding(signedBytes, identifier));
+        }
+
+        if (contains) {
+            hitCount.incrementAndGet();
+        } else {
+            missCount.incrementAndGet();
+        }
+
+        return contains;
+    }
+
+    public static void add(byte[] signature, byte[] signedBytes, byte[] identifier) {
+
+        // The signature is copied so that later modification of the caller's array cannot change the key.
+        ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(signature, signature.length));
+        if (signatureToBindingMap.put(key, binding(signedBytes, identifier)) == null) {
+            insertionOrder.add(key);
+
+            // Evict the oldest entries once the cache exceeds its maximum size.
+            if (size.incrementAndGet() > maximumSize) {
+                ByteBuffer oldestKey = insertionOrder.poll();
+                if (oldestKey != null) {
+                    signatureToBindingMap.remove(oldestKey);
+                    size.decrementAndGet();
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static byte[] binding(byte[] signedBytes, byte[] identifier) {
+
+        MessageDigest digest = HashUtil.startSHA256();
+        digest.update(identifier);
+        digest.update(signedBytes);
+        return HashUtil.finishSingleSHA256(digest);
+    }
+
+    public static long getHitCount() {
+        return hitCount.get();
+    }
+
+    public static long getMissCount() {
+        return missCount.get();
+    }
+
+    public static String cacheInformation() {
+        return "size=" + size.get() + ", hits=" + hitCount.get() + ", misses=" + missCount.get() + ", evictions=" +
+                evictionCount.get();
+    }
+}